@@ -19,6 +19,7 @@ export interface WapGroupConfig {
   requireMention?: boolean;
   respondToMentionAll?: boolean;
   allowFrom?: string[];
+  triggerKeywords?: string[];
   tools?: WapGroupToolPolicy;
   skills?: string[];
   systemPrompt?: string;
@@ -38,6 +39,7 @@ export interface WapAccountConfig {
   requireMentionInGroup?: boolean;
   respondToMentionAll?: boolean;
   silentPairing?: boolean;
+  triggerKeywords?: string[];
   groups?: Record<string, WapGroupConfig>;
 }
 
@@ -71,6 +73,7 @@ function mergeAccountConfig(base: WapAccountConfig, next: WapAccountConfig): Wap
     groupAllowChats: next.groupAllowChats ?? base.groupAllowChats,
     groupAllowFrom: next.groupAllowFrom ?? base.groupAllowFrom,
     noMentionContextGroups: next.noMentionContextGroups ?? base.noMentionContextGroups,
+    triggerKeywords: next.triggerKeywords ?? base.triggerKeywords,
     groups: mergeGroupConfigs(base.groups, next.groups),
   };
 }
@@ -96,6 +99,7 @@ function mergeGroupConfig(base: WapGroupConfig | undefined, next: WapGroupConfig
     ...base,
     ...next,
     allowFrom: next?.allowFrom ?? base?.allowFrom,
+    triggerKeywords: next?.triggerKeywords ?? base?.triggerKeywords,
     skills: next?.skills ?? base?.skills,
     tools: mergeToolPolicy(base?.tools, next?.tools),
   };
@@ -163,6 +167,7 @@ export function resolveWapAccount(cfg: OpenClawConfig, accountId?: string | null
     requireMentionInGroup: channelConfig.requireMentionInGroup,
     respondToMentionAll: channelConfig.respondToMentionAll,
     silentPairing: channelConfig.silentPairing,
+    triggerKeywords: channelConfig.triggerKeywords,
     groups: channelConfig.groups,
   };
   const accountSpecific = channelConfig.accounts?.[id] ?? {};
@@ -208,6 +213,20 @@ export function resolveNoMentionContextGroups(config: WapAccountConfig): string[
     .filter((entry) => entry.length > 0);
 }
 
+function normalizeTriggerKeywords(keywords: string[]): string[] {
+  return [
+    ...new Set(
+      keywords
+        .map((entry) => String(entry).trim().toLowerCase())
+        .filter((entry) => entry.length > 0),
+    ),
+  ];
+}
+
+export function resolveTriggerKeywords(config: WapAccountConfig): string[] {
+  return normalizeTriggerKeywords(config.triggerKeywords ?? []);
+}
+
 export function resolveNoMentionContextHistoryLimit(config: WapAccountConfig): number {
   const raw = Number(config.noMentionContextHistoryLimit);
   if (!Number.isFinite(raw)) {
@@ -331,6 +350,7 @@ export function buildWapClientGroupConfigs(config: WapAccountConfig): Record<
     require_mention?: boolean;
     respond_to_mention_all?: boolean;
     allow_from?: string[];
+    trigger_keywords?: string[];
   }
 > {
   const groups = config.groups ?? {};
@@ -342,6 +362,7 @@ export function buildWapClientGroupConfigs(config: WapAccountConfig): Record<
       require_mention?: boolean;
       respond_to_mention_all?: boolean;
       allow_from?: string[];
+      trigger_keywords?: string[];
     }
   > = {};
   for (const [rawKey, rawConfig] of Object.entries(groups)) {
@@ -355,6 +376,7 @@ export function buildWapClientGroupConfigs(config: WapAccountConfig): Record<
       require_mention?: boolean;
       respond_to_mention_all?: boolean;
       allow_from?: string[];
+      trigger_keywords?: string[];
     } = {};
     if (typeof rawConfig.enabled === "boolean") {
       entry.enabled = rawConfig.enabled;
@@ -373,6 +395,9 @@ export function buildWapClientGroupConfigs(config: WapAccountConfig): Record<
         .map((value) => String(value).trim().toLowerCase())
         .filter((value) => value.length > 0);
     }
+    if (Array.isArray(rawConfig.triggerKeywords)) {
+      entry.trigger_keywords = normalizeTriggerKeywords(rawConfig.triggerKeywords);
+    }
     entries[key] = entry;
   }
   return entries;
@@ -585,6 +610,7 @@ export const wapChannelConfigSchema = {
             requireMention: { type: "boolean" },
             respondToMentionAll: { type: "boolean" },
             allowFrom: { type: "array", items: { type: "string" } },
+            triggerKeywords: { type: "array", items: { type: "string" } },
             tools: {
               type: "object",
               additionalProperties: false,
@@ -605,6 +631,7 @@ export const wapChannelConfigSchema = {
       requireMentionInGroup: { type: "boolean" },
       respondToMentionAll: { type: "boolean" },
       silentPairing: { type: "boolean" },
+      triggerKeywords: { type: "array", items: { type: "string" } },
       accounts: {
         type: "object",
         additionalProperties: {
@@ -637,6 +664,7 @@ export const wapChannelConfigSchema = {
                   requireMention: { type: "boolean" },
                   respondToMentionAll: { type: "boolean" },
                   allowFrom: { type: "array", items: { type: "string" } },
+                  triggerKeywords: { type: "array", items: { type: "string" } },
                   tools: {
                     type: "object",
                     additionalProperties: false,
@@ -657,6 +685,7 @@ export const wapChannelConfigSchema = {
             requireMentionInGroup: { type: "boolean" },
             respondToMentionAll: { type: "boolean" },
             silentPairing: { type: "boolean" },
+            triggerKeywords: { type: "array", items: { type: "string" } },
           },
         },
       },
@@ -690,7 +719,10 @@ export const wapChannelConfigSchema = {
       help: "Pending context entries kept per group for no-mention messages.",
     },
     "channels.openclaw-channel-wap.groups": {
-      help: "Per-group overrides keyed by group talker or '*'. Supports enabled, requireMention, respondToMentionAll, allowFrom, tools, skills, and systemPrompt.",
+      help: "Per-group overrides keyed by group talker or '*'. Supports enabled, requireMention, respondToMentionAll, allowFrom, triggerKeywords, tools, skills, and systemPrompt.",
+    },
+    "channels.openclaw-channel-wap.triggerKeywords": {
+      help: "Keywords that satisfy mention gating in groups (case-insensitive substring match on the device). Merged with groups.<talker> or groups.'*' triggerKeywords.",
     },
     "channels.openclaw-channel-wap.silentPairing": {
       help: "When true, pairing requests are recorded silently without auto-reply.",
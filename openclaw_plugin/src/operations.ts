@@ -23,6 +23,7 @@ export type WapGroupEntry = {
 };
 
 export type WapLookupKind = "user" | "group" | "all";
+export type WapLookupFuzzy = "typo";
 export type WapTargetKind = "direct" | "group";
 export type WapSendStatus = "sendable" | "not_friend" | "blocked_by_allow_from" | "invalid_group" | "unknown";
 export type WapSendFailureCode =
@@ -33,6 +34,7 @@ export type WapSendFailureCode =
   | "invalid_group"
   | "no_connected_client"
   | "rate_limited"
+  | "directory_refreshing"
   | "send_failed";
 
 export type WapLookupTargetCandidate = {
@@ -236,6 +238,7 @@ function mapCommandFailure(
     case "invalid_group":
     case "no_connected_client":
     case "rate_limited":
+    case "directory_refreshing":
     case "send_failed":
       return {
         code: result.errorCode,
@@ -246,6 +249,32 @@ function mapCommandFailure(
   }
 }
 
+// 插件目录刷新通常在几秒内完成；只重试一次，仍在刷新则把 directory_refreshing 交给调用方
+const DIRECTORY_REFRESH_RETRY_DELAY_MS = 3000;
+
+function waitForDirectoryRefresh(): Promise<void> {
+  return new Promise((resolve) => setTimeout(resolve, DIRECTORY_REFRESH_RETRY_DELAY_MS));
+}
+
+// 发送校验未命中目录快照时插件返回 directory_refreshing，等待刷新后带 directory_retry 重发一次
+async function sendCommandWithDirectoryRetry(params: {
+  command: WapSendTextCommand | WapSendImageCommand | WapSendFileCommand;
+  accountId: string;
+}): Promise<{ ok: true; result: unknown } | { ok: false; error: string; errorCode?: string }> {
+  const result = await sendCommandToClient(params);
+  if (result.ok || result.errorCode !== "directory_refreshing") {
+    return result;
+  }
+  await waitForDirectoryRefresh();
+  return await sendCommandToClient({
+    command: {
+      ...params.command,
+      data: { ...params.command.data, directory_retry: true },
+    } as WapSendTextCommand | WapSendImageCommand | WapSendFileCommand,
+    accountId: params.accountId,
+  });
+}
+
 async function preflightCanonicalTarget(params: {
   target: string;
   accountId?: string | null;
@@ -261,12 +290,18 @@ async function preflightCanonicalTarget(params: {
       error: "Invalid WeChat target. Expected canonical target: <user:wxid> or <group:talker@chatroom>.",
     };
   }
-  const lookup = await lookupWapTargets({
+  const lookupParams = {
     query: parsed.canonicalTarget,
     accountId: params.accountId,
-    kind: parsed.targetKind === "group" ? "group" : "user",
+    kind: (parsed.targetKind === "group" ? "group" : "user") as WapLookupKind,
     limit: 50,
-  });
+  };
+  let lookup = await lookupWapTargets(lookupParams);
+  if (lookup.ok && lookup.directoryRefreshing) {
+    // 目标不在插件的目录快照中，插件已请求刷新：等刷新完成后重试一次，覆盖刚添加的好友 / 刚加入的群
+    await waitForDirectoryRefresh();
+    lookup = await lookupWapTargets({ ...lookupParams, directoryRetry: true });
+  }
   if (!lookup.ok) {
     const failure = mapTransportErrorToSendFailure(lookup.error);
     return {
@@ -276,6 +311,13 @@ async function preflightCanonicalTarget(params: {
   }
   const candidate = findLookupCandidateByCanonicalTarget(lookup.candidates, parsed.canonicalTarget);
   if (!candidate) {
+    if (lookup.directoryRefreshing) {
+      return {
+        ok: false,
+        code: "directory_refreshing",
+        error: `WeChat directory is still refreshing, retry later: ${parsed.canonicalTarget}`,
+      };
+    }
     return {
       ok: false,
       code: "target_not_found",
@@ -296,44 +338,112 @@ async function preflightCanonicalTarget(params: {
   };
 }
 
+const DIRECTORY_PAGE_SIZE = 200;
+const DIRECTORY_MAX_PAGES = 200;
+
+// 上一次完整拉取的原始列表与 ETag，按 account + method 缓存；未变化时插件只回 not_modified
+const directoryListCache = new Map<string, { etag: string; entries: unknown[] }>();
+
+async function fetchWapDirectoryPages(params: {
+  accountId: string;
+  method: "get_friends" | "get_groups";
+  listField: "friends" | "groups";
+  extraParams?: Record<string, unknown>;
+  // 结果含 ETag 未覆盖的字段（如异步补齐的 member_count）时不走条件请求与缓存
+  conditional?: boolean;
+  onEntry: (rawEntry: unknown) => void;
+}): Promise<{ ok: true } | { ok: false; error: string }> {
+  const conditional = params.conditional !== false;
+  const cacheKey = `${params.accountId}:${params.method}`;
+  const cached = conditional ? directoryListCache.get(cacheKey) : undefined;
+  const collected: unknown[] = [];
+  let etag: string | undefined;
+  let etagStable = true;
+  let cursor: string | undefined;
+  for (let page = 0; page < DIRECTORY_MAX_PAGES; page += 1) {
+    const rpcResult = await callClientRpc({
+      method: params.method,
+      accountId: params.accountId,
+      rpcParams: {
+        ...params.extraParams,
+        page_size: DIRECTORY_PAGE_SIZE,
+        ...(cursor ? { cursor } : {}),
+        ...(!cursor && cached ? { if_none_match: cached.etag } : {}),
+      },
+    });
+    if (!rpcResult.ok) {
+      return rpcResult;
+    }
+    const record = asRecord(rpcResult.result);
+    if (!cursor && cached && record?.not_modified === true) {
+      for (const rawEntry of cached.entries) {
+        params.onEntry(rawEntry);
+      }
+      return { ok: true };
+    }
+    const pageEtag = asString(record?.etag);
+    if (!cursor) {
+      etag = pageEtag;
+    } else if (record?.epoch_changed === true || pageEtag !== etag) {
+      etagStable = false;
+    }
+    const rawEntries = Array.isArray(record?.[params.listField]) ? (record?.[params.listField] as unknown[]) : [];
+    for (const rawEntry of rawEntries) {
+      collected.push(rawEntry);
+      params.onEntry(rawEntry);
+    }
+    // 旧版插件忽略分页参数、一次返回全量且不带 next_cursor
+    const nextCursor = asString(record?.next_cursor);
+    if (!nextCursor || nextCursor === cursor) {
+      if (conditional && etag && etagStable) {
+        directoryListCache.set(cacheKey, { etag, entries: collected });
+      } else if (conditional) {
+        directoryListCache.delete(cacheKey);
+      }
+      return { ok: true };
+    }
+    cursor = nextCursor;
+  }
+  return { ok: false, error: `WAP ${params.method} exceeded ${DIRECTORY_MAX_PAGES} pages` };
+}
+
 export async function listWapFriends(params: {
   accountId?: string | null;
   query?: string | null;
   limit?: number | null;
 }): Promise<{ ok: true; friends: WapFriendEntry[] } | { ok: false; error: string }> {
   const accountId = normalizeAccountId(params.accountId);
-  const rpcResult = await callClientRpc({
-    method: "get_friends",
+  const friends: WapFriendEntry[] = [];
+  const fetched = await fetchWapDirectoryPages({
     accountId,
+    method: "get_friends",
+    listField: "friends",
+    onEntry: (rawEntry) => {
+      const entry = asRecord(rawEntry);
+      if (!entry) {
+        return;
+      }
+      const wxid = asString(entry.wxid) ?? asString(entry.id);
+      if (!wxid) {
+        return;
+      }
+      const remark = asString(entry.remark);
+      const nickname = asString(entry.nickname);
+      const alias = asString(entry.alias);
+      const displayName = remark ?? nickname ?? alias ?? wxid;
+      const sendStatus = parseSendStatus(asString(entry.send_status) ?? asString(entry.sendStatus));
+      friends.push({
+        wxid,
+        remark,
+        nickname,
+        alias,
+        displayName,
+        sendable: sendStatus === "sendable" || entry.sendable === true,
+      });
+    },
   });
-  if (!rpcResult.ok) {
-    return rpcResult;
-  }
-  const record = asRecord(rpcResult.result);
-  const rawFriends = Array.isArray(record?.friends) ? record.friends : [];
-  const friends: WapFriendEntry[] = [];
-  for (const rawEntry of rawFriends) {
-    const entry = asRecord(rawEntry);
-    if (!entry) {
-      continue;
-    }
-    const wxid = asString(entry.wxid) ?? asString(entry.id);
-    if (!wxid) {
-      continue;
-    }
-    const remark = asString(entry.remark);
-    const nickname = asString(entry.nickname);
-    const alias = asString(entry.alias);
-    const displayName = remark ?? nickname ?? alias ?? wxid;
-    const sendStatus = parseSendStatus(asString(entry.send_status) ?? asString(entry.sendStatus));
-    friends.push({
-      wxid,
-      remark,
-      nickname,
-      alias,
-      displayName,
-      sendable: sendStatus === "sendable" || entry.sendable === true,
-    });
+  if (!fetched.ok) {
+    return fetched;
   }
   return {
     ok: true,
@@ -349,32 +459,34 @@ export async function listWapGroups(params: {
   accountId?: string | null;
   query?: string | null;
   limit?: number | null;
+  includeMemberCount?: boolean | null;
 }): Promise<{ ok: true; groups: WapGroupEntry[] } | { ok: false; error: string }> {
   const accountId = normalizeAccountId(params.accountId);
-  const rpcResult = await callClientRpc({
-    method: "get_groups",
+  const includeMemberCount = params.includeMemberCount === true;
+  const groups: WapGroupEntry[] = [];
+  const fetched = await fetchWapDirectoryPages({
     accountId,
+    method: "get_groups",
+    listField: "groups",
+    ...(includeMemberCount ? { extraParams: { include_member_count: true }, conditional: false } : {}),
+    onEntry: (rawEntry) => {
+      const entry = asRecord(rawEntry);
+      if (!entry) {
+        return;
+      }
+      const talker = asString(entry.talker) ?? asString(entry.id);
+      if (!talker) {
+        return;
+      }
+      groups.push({
+        talker,
+        name: asString(entry.name),
+        memberCount: asNumber(entry.member_count) ?? asNumber(entry.memberCount),
+      });
+    },
   });
-  if (!rpcResult.ok) {
-    return rpcResult;
-  }
-  const record = asRecord(rpcResult.result);
-  const rawGroups = Array.isArray(record?.groups) ? record.groups : [];
-  const groups: WapGroupEntry[] = [];
-  for (const rawEntry of rawGroups) {
-    const entry = asRecord(rawEntry);
-    if (!entry) {
-      continue;
-    }
-    const talker = asString(entry.talker) ?? asString(entry.id);
-    if (!talker) {
-      continue;
-    }
-    groups.push({
-      talker,
-      name: asString(entry.name),
-      memberCount: asNumber(entry.member_count) ?? asNumber(entry.memberCount),
-    });
+  if (!fetched.ok) {
+    return fetched;
   }
   return {
     ok: true,
@@ -391,7 +503,12 @@ export async function lookupWapTargets(params: {
   accountId?: string | null;
   kind?: WapLookupKind | null;
   limit?: number | null;
-}): Promise<{ ok: true; query: string; candidates: WapLookupTargetCandidate[] } | { ok: false; error: string }> {
+  fuzzy?: WapLookupFuzzy | null;
+  directoryRetry?: boolean;
+}): Promise<
+  | { ok: true; query: string; candidates: WapLookupTargetCandidate[]; directoryRefreshing: boolean }
+  | { ok: false; error: string }
+> {
   const accountId = normalizeAccountId(params.accountId);
   const query = normalizeWapMessagingTarget(params.query);
   if (!query) {
@@ -405,6 +522,8 @@ export async function lookupWapTargets(params: {
       query,
       kind,
       ...(typeof params.limit === "number" && Number.isFinite(params.limit) ? { limit: params.limit } : {}),
+      ...(params.fuzzy === "typo" ? { fuzzy: params.fuzzy } : {}),
+      ...(params.directoryRetry ? { directory_retry: true } : {}),
     },
   });
   if (!rpcResult.ok) {
@@ -420,6 +539,129 @@ export async function lookupWapTargets(params: {
     ok: true,
     query,
     candidates: limit && limit > 0 ? candidates.slice(0, limit) : candidates,
+    directoryRefreshing: record?.directory_refreshing === true,
+  };
+}
+
+export type WapLookupBatchQuery = {
+  query: string;
+  kind?: WapLookupKind | null;
+  limit?: number | null;
+  fuzzy?: WapLookupFuzzy | null;
+};
+
+export type WapLookupBatchResult = {
+  index: number;
+  query: string;
+  kind: WapLookupKind;
+  fuzzy?: WapLookupFuzzy;
+  limit?: number;
+  candidates: WapLookupTargetCandidate[];
+};
+
+// results 与 queries 按下标一一对应；缺少 query 的条目为 null 并列在 invalidIndexes，超出单批上限的条数记在 droppedQueries
+export async function lookupWapTargetsBatch(params: {
+  queries: WapLookupBatchQuery[];
+  accountId?: string | null;
+}): Promise<
+  | {
+      ok: true;
+      results: Array<WapLookupBatchResult | null>;
+      truncated: boolean;
+      invalidIndexes: number[];
+      droppedQueries: number;
+    }
+  | { ok: false; error: string }
+> {
+  const accountId = normalizeAccountId(params.accountId);
+  const batchQueries = params.queries.map((entry) => ({
+    query: normalizeWapMessagingTarget(entry.query),
+    kind: (entry.kind === "user" || entry.kind === "group" ? entry.kind : "all") as WapLookupKind,
+    limit: typeof entry.limit === "number" && Number.isFinite(entry.limit) ? entry.limit : undefined,
+    fuzzy: entry.fuzzy === "typo" ? entry.fuzzy : undefined,
+  }));
+  if (!batchQueries.some((entry) => entry.query)) {
+    return { ok: false, error: "Missing WeChat lookup queries" };
+  }
+  const rpcResult = await callClientRpc({
+    method: "lookup_targets_batch",
+    accountId,
+    rpcParams: {
+      queries: batchQueries.map((entry) => ({
+        query: entry.query,
+        kind: entry.kind,
+        ...(entry.limit !== undefined ? { limit: entry.limit } : {}),
+        ...(entry.fuzzy ? { fuzzy: entry.fuzzy } : {}),
+      })),
+    },
+  });
+  if (!rpcResult.ok) {
+    return rpcResult;
+  }
+  const record = asRecord(rpcResult.result);
+  const rawResults = Array.isArray(record?.results) ? record.results : [];
+  const invalidIndexes = Array.isArray(record?.invalid_indexes)
+    ? record.invalid_indexes.filter((value): value is number => typeof value === "number")
+    : [];
+  const droppedQueries = asNumber(record?.dropped_queries) ?? 0;
+  const results: Array<WapLookupBatchResult | null> = [];
+  for (let index = 0; index < batchQueries.length - droppedQueries; index += 1) {
+    const entry = asRecord(rawResults[index]);
+    if (!entry) {
+      results.push(null);
+      continue;
+    }
+    const rawCandidates = Array.isArray(entry.candidates) ? entry.candidates : [];
+    const { query, kind, limit, fuzzy } = batchQueries[index];
+    results.push({
+      index,
+      query,
+      kind,
+      ...(fuzzy ? { fuzzy } : {}),
+      ...(limit !== undefined ? { limit } : {}),
+      candidates: rawCandidates
+        .map((candidate) => parseLookupCandidate(candidate))
+        .filter((candidate): candidate is WapLookupTargetCandidate => candidate !== null),
+    });
+  }
+  return { ok: true, results, truncated: record?.truncated === true, invalidIndexes, droppedQueries };
+}
+
+export async function resolveWapDisplayNames(params: {
+  wxids: string[];
+  groupTalker?: string | null;
+  accountId?: string | null;
+}): Promise<{ ok: true; names: Record<string, string>; unresolved: string[] } | { ok: false; error: string }> {
+  const accountId = normalizeAccountId(params.accountId);
+  const wxids = Array.from(new Set(params.wxids.map((wxid) => wxid.trim()).filter(Boolean)));
+  if (wxids.length === 0) {
+    return { ok: false, error: "Missing wxids" };
+  }
+  const groupTalker = asString(params.groupTalker);
+  const rpcResult = await callClientRpc({
+    method: "resolve_display_names",
+    accountId,
+    rpcParams: {
+      wxids,
+      ...(groupTalker ? { group_talker: groupTalker } : {}),
+    },
+  });
+  if (!rpcResult.ok) {
+    return rpcResult;
+  }
+  const record = asRecord(rpcResult.result);
+  const rawNames = asRecord(record?.names) ?? {};
+  const names: Record<string, string> = {};
+  for (const [wxid, rawName] of Object.entries(rawNames)) {
+    const name = asString(rawName);
+    if (name) {
+      names[wxid] = name;
+    }
+  }
+  return {
+    ok: true,
+    names,
+    unresolved: wxids.filter((wxid) => !names[wxid]),
   };
 }
 
@@ -463,7 +705,7 @@ export async function sendWapTextToCanonicalTarget(params: {
       ...(params.replyToMessageId && params.replyToMessageId > 0 ? { reply_to_msg_id: params.replyToMessageId } : {}),
     },
   };
-  const result = await sendCommandToClient({
+  const result = await sendCommandWithDirectoryRetry({
     command,
     accountId,
   });
@@ -533,7 +775,7 @@ export async function sendWapMediaToCanonicalTarget(params: {
       error: `Failed to prepare WeChat ${params.kind} payload from source: ${source}`,
     };
   }
-  const result = await sendCommandToClient({
+  const result = await sendCommandWithDirectoryRetry({
     command: command.type === "send_image"
       ? (command as WapSendImageCommand)
       : (command as WapSendFileCommand),
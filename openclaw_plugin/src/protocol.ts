@@ -9,6 +9,13 @@ export interface WapClientCapabilities {
   rpc_methods?: string[];
   command_types?: string[];
   features?: string[];
+  directory_etags?: WapDirectoryEtags;
+}
+
+export interface WapDirectoryEtags {
+  friends?: string;
+  groups?: string;
+  epoch?: number;
 }
 
 // ============================================================
@@ -39,6 +46,8 @@ export interface WapMessageData {
   quote_display_name?: string;
   quote_talker?: string;
   quote_type?: number;
+  /** Configured trigger keywords found in the message on the device. */
+  trigger_keywords?: string[];
 }
 
 export interface WapMessagePayload {
@@ -78,12 +87,59 @@ export interface WapCommandResultPayload {
   };
 }
 
+export interface WapDirectoryDeltaFriend {
+  wxid: string;
+  remark?: string;
+  nickname?: string;
+  alias?: string;
+  display_name: string;
+  sendable?: boolean;
+}
+
+export interface WapDirectoryDeltaGroup {
+  talker: string;
+  name?: string;
+}
+
+export interface WapDirectoryDeltaSection<T> {
+  added: T[];
+  removed: string[];
+  renamed: T[];
+}
+
+export interface WapDirectoryDeltaPayload {
+  type: "directory_delta";
+  data: {
+    epoch: number;
+    base_epoch: number;
+    resync_required?: boolean;
+    changes?: number;
+    friends?: WapDirectoryDeltaSection<WapDirectoryDeltaFriend>;
+    groups?: WapDirectoryDeltaSection<WapDirectoryDeltaGroup>;
+  };
+}
+
+export interface WapGroupRosterDeltaPayload {
+  type: "group_roster_delta";
+  data: {
+    talker: string;
+    member_count?: number;
+    previous_member_count?: number;
+    resync_required?: boolean;
+    changes?: number;
+    joined?: Array<{ wxid: string; display_name?: string }>;
+    left?: string[];
+  };
+}
+
 export type WapUpstreamMessage =
   | WapMessagePayload
   | WapHeartbeatPayload
   | WapCapabilitiesPayload
   | WapRpcResultPayload
-  | WapCommandResultPayload;
+  | WapCommandResultPayload
+  | WapDirectoryDeltaPayload
+  | WapGroupRosterDeltaPayload;
 
 // ============================================================
 // Downstream commands (Server -> Android)
@@ -96,6 +152,8 @@ export interface WapSendTextCommand {
     talker: string;
     content: string;
     reply_to_msg_id?: number;
+    // 目录刷新后的重试：插件不再请求刷新，未命中即为确定结果
+    directory_retry?: boolean;
   };
 }
 
@@ -112,28 +170,62 @@ export interface WapRpcRequestCommand {
   };
 }
 
+export interface WapConfigGroupEntry {
+  enabled?: boolean;
+  group_policy?: "open" | "allowlist" | "disabled";
+  require_mention?: boolean;
+  respond_to_mention_all?: boolean;
+  allow_from?: string[];
+  trigger_keywords?: string[];
+}
+
+export interface WapConfigData {
+  config_version?: string;
+  allow_from: string[];
+  group_policy: "open" | "allowlist" | "disabled";
+  group_allow_chats: string[];
+  group_allow_from: string[];
+  no_mention_context_groups: string[];
+  dm_policy: "open" | "pairing" | "allowlist" | "disabled";
+  require_mention_in_group: boolean;
+  respond_to_mention_all_in_group: boolean;
+  silent_pairing: boolean;
+  trigger_keywords: string[];
+  groups?: Record<string, WapConfigGroupEntry>;
+}
+
 export interface WapConfigCommand {
   type: "config";
+  data: WapConfigData;
+}
+
+export interface WapConfigListPatch {
+  allow_from?: string[];
+  group_allow_chats?: string[];
+  group_allow_from?: string[];
+  no_mention_context_groups?: string[];
+  trigger_keywords?: string[];
+}
+
+/** Incremental config update against a version the client already applied; `groups` null = remove. */
+export interface WapConfigPatchCommand {
+  type: "config_patch";
   data: {
-    allow_from: string[];
-    group_policy: "open" | "allowlist" | "disabled";
-    group_allow_chats: string[];
-    group_allow_from: string[];
-    no_mention_context_groups: string[];
-    dm_policy: "open" | "pairing" | "allowlist" | "disabled";
-    require_mention_in_group: boolean;
-    respond_to_mention_all_in_group: boolean;
-    silent_pairing: boolean;
-    groups?: Record<
-      string,
-      {
-        enabled?: boolean;
-        group_policy?: "open" | "allowlist" | "disabled";
-        require_mention?: boolean;
-        respond_to_mention_all?: boolean;
-        allow_from?: string[];
-      }
+    base_version: string;
+    config_version: string;
+    set?: Partial<
+      Pick<
+        WapConfigData,
+        | "group_policy"
+        | "dm_policy"
+        | "require_mention_in_group"
+        | "respond_to_mention_all_in_group"
+        | "silent_pairing"
+      >
     >;
+    add?: WapConfigListPatch;
+    remove?: WapConfigListPatch;
+    groups?: Record<string, WapConfigGroupEntry | null>;
   };
 }
 
@@ -146,6 +238,8 @@ export interface WapSendImageCommand {
     image_id?: string;
     account_id?: string;
     caption?: string;
+    // 目录刷新后的重试：插件不再请求刷新，未命中即为确定结果
+    directory_retry?: boolean;
   };
 }
 
@@ -159,6 +253,8 @@ export interface WapSendFileCommand {
     account_id?: string;
     file_name?: string;
     caption?: string;
+    // 目录刷新后的重试：插件不再请求刷新，未命中即为确定结果
+    directory_retry?: boolean;
   };
 }
 
@@ -177,6 +273,7 @@ export type WapDownstreamCommand =
   | WapPongCommand
   | WapRpcRequestCommand
   | WapConfigCommand
+  | WapConfigPatchCommand
   | WapSendImageCommand
   | WapSendFileCommand
   | WapSendVoiceCommand;
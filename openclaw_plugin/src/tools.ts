@@ -1,5 +1,15 @@
 import type { OpenClawPluginApi } from "openclaw/plugin-sdk/core";
-import { buildWapClientDiagnostics, listWapFriends, listWapGroups, lookupWapTargets, type WapLookupKind } from "./operations.js";
+import {
+  buildWapClientDiagnostics,
+  listWapFriends,
+  listWapGroups,
+  lookupWapTargets,
+  lookupWapTargetsBatch,
+  resolveWapDisplayNames,
+  type WapLookupBatchQuery,
+  type WapLookupFuzzy,
+  type WapLookupKind,
+} from "./operations.js";
 
 type ToolResult = {
   content: Array<{ type: "text"; text: string }>;
@@ -11,6 +21,18 @@ type LookupParams = {
   kind?: WapLookupKind;
   accountId?: string;
   limit?: number;
+  fuzzy?: WapLookupFuzzy;
+};
+
+type LookupBatchParams = {
+  queries?: unknown;
+  accountId?: string;
+};
+
+type ResolveNamesParams = {
+  wxids?: unknown;
+  groupTalker?: string;
+  accountId?: string;
 };
 
 type ListParams = {
@@ -19,6 +41,10 @@ type ListParams = {
   limit?: number;
 };
 
+type GroupListParams = ListParams & {
+  includeMemberCount?: boolean;
+};
+
 function jsonResult(details: unknown): ToolResult {
   return {
     content: [{ type: "text", text: JSON.stringify(details, null, 2) }],
@@ -38,6 +64,10 @@ function normalizeLookupKind(value: unknown): WapLookupKind {
   return value === "user" || value === "group" ? value : "all";
 }
 
+function normalizeLookupFuzzy(value: unknown): WapLookupFuzzy | undefined {
+  return value === "typo" ? value : undefined;
+}
+
 export function registerWapTools(api: OpenClawPluginApi) {
   api.registerTool(
     {
@@ -78,14 +108,20 @@ export function registerWapTools(api: OpenClawPluginApi) {
           accountId: { type: "string", description: "Optional WAP account id." },
           query: { type: "string", description: "Optional fuzzy filter on talker/name." },
           limit: { type: "number", description: "Optional maximum number of records to return." },
+          includeMemberCount: {
+            type: "boolean",
+            description:
+              "Optional. Include cached member counts; groups whose count is not cached yet omit it and are filled in the background.",
+          },
         },
       },
       async execute(_toolCallId: string, params: unknown) {
-        const p = (params ?? {}) as ListParams;
+        const p = (params ?? {}) as GroupListParams;
         const result = await listWapGroups({
           accountId: normalizeOptionalString(p.accountId),
           query: normalizeOptionalString(p.query),
           limit: normalizeOptionalNumber(p.limit),
+          includeMemberCount: p.includeMemberCount === true,
         });
         return jsonResult(result.ok ? { ok: true, count: result.groups.length, groups: result.groups } : result);
       },
@@ -108,6 +144,11 @@ export function registerWapTools(api: OpenClawPluginApi) {
           kind: { type: "string", enum: ["user", "group", "all"], description: "Optional lookup scope." },
           accountId: { type: "string", description: "Optional WAP account id." },
           limit: { type: "number", description: "Optional maximum number of candidates to return." },
+          fuzzy: {
+            type: "string",
+            enum: ["typo"],
+            description: "Optional. Use \"typo\" to also return names within a small edit distance of the query.",
+          },
         },
       },
       async execute(_toolCallId: string, params: unknown) {
@@ -121,6 +162,7 @@ export function registerWapTools(api: OpenClawPluginApi) {
           kind: normalizeLookupKind(p.kind),
           accountId: normalizeOptionalString(p.accountId),
           limit: normalizeOptionalNumber(p.limit),
+          fuzzy: normalizeLookupFuzzy(p.fuzzy),
         });
         return jsonResult(result.ok ? { ok: true, query: result.query, candidates: result.candidates } : result);
       },
@@ -128,6 +170,97 @@ export function registerWapTools(api: OpenClawPluginApi) {
     { name: "wechat_lookup_targets" },
   );
 
+  api.registerTool(
+    {
+      name: "wechat_lookup_targets_batch",
+      label: "WeChat: Lookup Targets (Batch)",
+      description:
+        "Resolve many WeChat recipients in one round trip. Returns one result per query in input order (with invalidIndexes / droppedQueries / truncated); use this instead of repeated wechat_lookup_targets calls.",
+      parameters: {
+        type: "object",
+        additionalProperties: false,
+        required: ["queries"],
+        properties: {
+          queries: {
+            type: "array",
+            maxItems: 50,
+            items: {
+              type: "object",
+              additionalProperties: false,
+              required: ["query"],
+              properties: {
+                query: { type: "string", description: "Query string used to match users or groups." },
+                kind: { type: "string", enum: ["user", "group", "all"], description: "Optional lookup scope." },
+                limit: { type: "number", description: "Optional maximum number of candidates for this query (default 5)." },
+                fuzzy: { type: "string", enum: ["typo"], description: "Optional typo-tolerant matching." },
+              },
+            },
+          },
+          accountId: { type: "string", description: "Optional WAP account id." },
+        },
+      },
+      async execute(_toolCallId: string, params: unknown) {
+        const p = (params ?? {}) as LookupBatchParams;
+        const rawQueries = Array.isArray(p.queries) ? p.queries : [];
+        // 保留空 query 的条目，结果下标才能与调用方传入的 queries 一一对应（插件会把它们列入 invalidIndexes）
+        const queries: WapLookupBatchQuery[] = [];
+        for (const rawQuery of rawQueries) {
+          const entry = (rawQuery ?? {}) as Record<string, unknown>;
+          queries.push({
+            query: normalizeOptionalString(entry.query) ?? "",
+            kind: normalizeLookupKind(entry.kind),
+            limit: normalizeOptionalNumber(entry.limit),
+            fuzzy: normalizeLookupFuzzy(entry.fuzzy),
+          });
+        }
+        if (!queries.some((entry) => entry.query)) {
+          return jsonResult({ ok: false, error: "Missing queries" });
+        }
+        const result = await lookupWapTargetsBatch({
+          queries,
+          accountId: normalizeOptionalString(p.accountId),
+        });
+        return jsonResult(result);
+      },
+    },
+    { name: "wechat_lookup_targets_batch" },
+  );
+
+  api.registerTool(
+    {
+      name: "wechat_resolve_display_names",
+      label: "WeChat: Resolve Display Names",
+      description:
+        "Resolve many raw wxids to display names in one call. With groupTalker, group nicknames take precedence over friend remarks.",
+      parameters: {
+        type: "object",
+        additionalProperties: false,
+        required: ["wxids"],
+        properties: {
+          wxids: { type: "array", maxItems: 200, items: { type: "string" }, description: "Raw wxids to resolve." },
+          groupTalker: { type: "string", description: "Optional group talker (xxx@chatroom) for group nicknames." },
+          accountId: { type: "string", description: "Optional WAP account id." },
+        },
+      },
+      async execute(_toolCallId: string, params: unknown) {
+        const p = (params ?? {}) as ResolveNamesParams;
+        const wxids = Array.isArray(p.wxids)
+          ? p.wxids.map((wxid) => normalizeOptionalString(wxid)).filter((wxid): wxid is string => Boolean(wxid))
+          : [];
+        if (wxids.length === 0) {
+          return jsonResult({ ok: false, error: "Missing wxids" });
+        }
+        const result = await resolveWapDisplayNames({
+          wxids,
+          groupTalker: normalizeOptionalString(p.groupTalker),
+          accountId: normalizeOptionalString(p.accountId),
+        });
+        return jsonResult(result);
+      },
+    },
+    { name: "wechat_resolve_display_names" },
+  );
+
   api.registerTool(
     {
       name: "wechat_capabilities",
@@ -1,6 +1,6 @@
 import { createReadStream, promises as fs } from "node:fs";
 import path from "node:path";
-import { randomUUID } from "node:crypto";
+import { createHash, randomUUID } from "node:crypto";
 import { createServer, type IncomingMessage, type ServerResponse } from "node:http";
 import { WebSocket, WebSocketServer } from "ws";
 import type { OpenClawPluginApi } from "openclaw/plugin-sdk/core";
@@ -23,6 +23,7 @@ import {
   resolveNoMentionContextGroups,
   resolveNoMentionContextHistoryLimit,
   resolveGroupPolicy,
+  resolveTriggerKeywords,
   resolveWapGroupEnabled,
   resolveWapGroupRequireMention,
   resolveWapGroupRespondToMentionAll,
@@ -36,6 +37,15 @@ import type {
   WapCommandResultPayload,
   WapCapabilitiesPayload,
   WapClientCapabilities,
+  WapConfigData,
+  WapConfigListPatch,
+  WapConfigPatchCommand,
+  WapDirectoryDeltaFriend,
+  WapDirectoryDeltaGroup,
+  WapDirectoryDeltaPayload,
+  WapDirectoryDeltaSection,
+  WapDirectoryEtags,
+  WapGroupRosterDeltaPayload,
   WapDownstreamCommand,
   WapMessageData,
   WapRpcRequestCommand,
@@ -62,6 +72,7 @@ interface ClientInfo {
   lastMessageAt: number;
   capabilities: WapClientCapabilities | null;
   lastCapabilityAt: number | null;
+  directoryEpoch: number | null;
 }
 
 const clients = new Map<string, ClientInfo>();
@@ -83,6 +94,12 @@ type TempFileEntry = {
 
 const tempFiles = new Map<string, TempFileEntry>();
 
+// Config payloads sent per account, keyed by config_version. Kept in memory across
+// reconnects so a client reporting a known version can get a patch; a process restart
+// clears it and every client falls back to a full config.
+const CONFIG_HISTORY_LIMIT = 8;
+const sentConfigHistory = new Map<string, Map<string, WapConfigData>>();
+
 const wechatContextHint = `
 [WeChat Context]
 尽可能保持简洁（单条 < 300 字）
@@ -168,6 +185,10 @@ function buildWapUntrustedContext(msgData: WapMessageData): string[] {
       typeof msgData.quote_type === "number" && Number.isFinite(msgData.quote_type)
         ? msgData.quote_type
         : undefined,
+    trigger_keywords:
+      Array.isArray(msgData.trigger_keywords) && msgData.trigger_keywords.length > 0
+        ? msgData.trigger_keywords
+        : undefined,
   };
 
   return [
@@ -230,6 +251,7 @@ function normalizeCapabilities(data: WapClientCapabilities): WapClientCapabiliti
     rpc_methods: normalizeStringList(data.rpc_methods),
     command_types: normalizeStringList(data.command_types),
     features: normalizeStringList(data.features),
+    directory_etags: data.directory_etags,
   };
 }
 
@@ -470,6 +492,7 @@ function handleConnection(ws: WebSocket, req: IncomingMessage, api: OpenClawPlug
     lastMessageAt: 0,
     capabilities: null,
     lastCapabilityAt: null,
+    directoryEpoch: null,
   });
 
   const allowFrom = resolveAllowFrom(account.config);
@@ -485,28 +508,159 @@ function handleConnection(ws: WebSocket, req: IncomingMessage, api: OpenClawPlug
   });
   const silentPairing = account.config.silentPairing ?? true;
 
-  ws.send(
-    JSON.stringify({
-      type: "config",
-      data: {
-        allow_from: allowFrom,
-        group_policy: groupPolicy,
-        group_allow_chats: groupAllowChats,
-        group_allow_from: groupAllowFrom,
-        no_mention_context_groups: noMentionContextGroups,
-        dm_policy: account.config.dmPolicy ?? "pairing",
-        require_mention_in_group: requireMentionInGroup,
-        respond_to_mention_all_in_group: respondToMentionAllInGroup,
-        silent_pairing: silentPairing,
-        groups: buildWapClientGroupConfigs(account.config),
-      },
-    }),
-  );
+  const configData: WapConfigData = {
+    allow_from: allowFrom,
+    group_policy: groupPolicy,
+    group_allow_chats: groupAllowChats,
+    group_allow_from: groupAllowFrom,
+    no_mention_context_groups: noMentionContextGroups,
+    dm_policy: account.config.dmPolicy ?? "pairing",
+    require_mention_in_group: requireMentionInGroup,
+    respond_to_mention_all_in_group: respondToMentionAllInGroup,
+    silent_pairing: silentPairing,
+    trigger_keywords: resolveTriggerKeywords(account.config),
+    groups: buildWapClientGroupConfigs(account.config),
+  };
+  const configVersion = computeWapConfigVersion(configData);
+  const clientConfigVersion = req.headers["x-wap-config-version"]?.toString().trim() ?? "";
+  const baseConfig = clientConfigVersion
+    ? sentConfigHistory.get(resolvedAccountId)?.get(clientConfigVersion)
+    : undefined;
+  rememberSentConfig(resolvedAccountId, configVersion, configData);
+
+  if (baseConfig) {
+    ws.send(JSON.stringify(buildWapConfigPatch(baseConfig, configData, clientConfigVersion, configVersion)));
+    api.logger.info(
+      `WAP config patch sent to ${resolvedAccountId}: ${clientConfigVersion} -> ${configVersion}`,
+    );
+  } else {
+    ws.send(
+      JSON.stringify({
+        type: "config",
+        data: { ...configData, config_version: configVersion },
+      }),
+    );
+  }
 
   api.logger.info(`WAP client connected: ${clientId} from ${ip} (account: ${resolvedAccountId})`);
   return clientId;
 }
 
+function computeWapConfigVersion(data: WapConfigData): string {
+  return createHash("sha256").update(JSON.stringify(data)).digest("hex").slice(0, 16);
+}
+
+function rememberSentConfig(accountId: string, version: string, data: WapConfigData) {
+  let history = sentConfigHistory.get(accountId);
+  if (!history) {
+    history = new Map();
+    sentConfigHistory.set(accountId, history);
+  }
+  history.delete(version);
+  history.set(version, data);
+  while (history.size > CONFIG_HISTORY_LIMIT) {
+    const oldest = history.keys().next().value;
+    if (oldest === undefined) {
+      break;
+    }
+    history.delete(oldest);
+  }
+}
+
+function diffConfigList(
+  field: keyof WapConfigListPatch,
+  base: string[],
+  next: string[],
+  add: WapConfigListPatch,
+  remove: WapConfigListPatch,
+) {
+  const baseSet = new Set(base);
+  const nextSet = new Set(next);
+  const added = next.filter((entry) => !baseSet.has(entry));
+  const removed = base.filter((entry) => !nextSet.has(entry));
+  if (added.length > 0) {
+    add[field] = added;
+  }
+  if (removed.length > 0) {
+    remove[field] = removed;
+  }
+}
+
+/** Diff two config payloads into a patch; identical payloads produce an empty patch. */
+function buildWapConfigPatch(
+  base: WapConfigData,
+  next: WapConfigData,
+  baseVersion: string,
+  nextVersion: string,
+): WapConfigPatchCommand {
+  const data: WapConfigPatchCommand["data"] = {
+    base_version: baseVersion,
+    config_version: nextVersion,
+  };
+  if (baseVersion === nextVersion) {
+    return { type: "config_patch", data };
+  }
+
+  const set: NonNullable<WapConfigPatchCommand["data"]["set"]> = {};
+  if (base.group_policy !== next.group_policy) {
+    set.group_policy = next.group_policy;
+  }
+  if (base.dm_policy !== next.dm_policy) {
+    set.dm_policy = next.dm_policy;
+  }
+  if (base.require_mention_in_group !== next.require_mention_in_group) {
+    set.require_mention_in_group = next.require_mention_in_group;
+  }
+  if (base.respond_to_mention_all_in_group !== next.respond_to_mention_all_in_group) {
+    set.respond_to_mention_all_in_group = next.respond_to_mention_all_in_group;
+  }
+  if (base.silent_pairing !== next.silent_pairing) {
+    set.silent_pairing = next.silent_pairing;
+  }
+  if (Object.keys(set).length > 0) {
+    data.set = set;
+  }
+
+  const add: WapConfigListPatch = {};
+  const remove: WapConfigListPatch = {};
+  diffConfigList("allow_from", base.allow_from, next.allow_from, add, remove);
+  diffConfigList("group_allow_chats", base.group_allow_chats, next.group_allow_chats, add, remove);
+  diffConfigList("group_allow_from", base.group_allow_from, next.group_allow_from, add, remove);
+  diffConfigList(
+    "no_mention_context_groups",
+    base.no_mention_context_groups,
+    next.no_mention_context_groups,
+    add,
+    remove,
+  );
+  diffConfigList("trigger_keywords", base.trigger_keywords, next.trigger_keywords, add, remove);
+  if (Object.keys(add).length > 0) {
+    data.add = add;
+  }
+  if (Object.keys(remove).length > 0) {
+    data.remove = remove;
+  }
+
+  const baseGroups = base.groups ?? {};
+  const nextGroups = next.groups ?? {};
+  const groups: NonNullable<WapConfigPatchCommand["data"]["groups"]> = {};
+  for (const [groupId, entry] of Object.entries(nextGroups)) {
+    const previous = baseGroups[groupId];
+    if (!previous || JSON.stringify(previous) !== JSON.stringify(entry)) {
+      groups[groupId] = entry;
+    }
+  }
+  for (const groupId of Object.keys(baseGroups)) {
+    if (!(groupId in nextGroups)) {
+      groups[groupId] = null;
+    }
+  }
+  if (Object.keys(groups).length > 0) {
+    data.groups = groups;
+  }
+  return { type: "config_patch", data };
+}
+
 function resolveOpenClient(accountId: string): [string, ClientInfo] | null {
   for (const entry of clients.entries()) {
     const [clientId, client] = entry;
@@ -565,6 +719,54 @@ function handleCapabilities(clientId: string, msg: WapCapabilitiesPayload, api:
   });
 }
 
+function handleDirectoryDelta(clientId: string, msg: WapDirectoryDeltaPayload, api: OpenClawPluginApi) {
+  const client = clients.get(clientId);
+  if (!client) {
+    return;
+  }
+  const { epoch, base_epoch: baseEpoch } = msg.data;
+  if (client.directoryEpoch !== null && baseEpoch !== client.directoryEpoch) {
+    api.logger.debug(
+      `WAP directory_delta epoch gap from ${clientId}: have ${client.directoryEpoch}, base ${baseEpoch}`,
+    );
+  }
+  client.directoryEpoch = epoch;
+  if (msg.data.resync_required) {
+    api.logger.info(`WAP directory changed beyond delta limit for ${clientId}`, {
+      epoch,
+      changes: msg.data.changes,
+    });
+    return;
+  }
+  const friends = msg.data.friends;
+  const groups = msg.data.groups;
+  api.logger.debug(`WAP directory_delta from ${clientId}`, {
+    epoch,
+    friendsAdded: friends?.added.length ?? 0,
+    friendsRemoved: friends?.removed.length ?? 0,
+    friendsRenamed: friends?.renamed.length ?? 0,
+    groupsAdded: groups?.added.length ?? 0,
+    groupsRemoved: groups?.removed.length ?? 0,
+    groupsRenamed: groups?.renamed.length ?? 0,
+  });
+}
+
+function handleGroupRosterDelta(clientId: string, msg: WapGroupRosterDeltaPayload, api: OpenClawPluginApi) {
+  const { talker, member_count: memberCount } = msg.data;
+  if (msg.data.resync_required) {
+    api.logger.info(`WAP group roster changed beyond delta limit for ${talker} from ${clientId}`, {
+      memberCount,
+      changes: msg.data.changes,
+    });
+    return;
+  }
+  api.logger.info(`WAP group roster changed for ${talker} from ${clientId}`, {
+    memberCount,
+    joined: (msg.data.joined ?? []).map((member) => member.wxid),
+    left: msg.data.left ?? [],
+  });
+}
+
 function handleRpcResult(clientId: string, msg: WapRpcResultPayload, api: OpenClawPluginApi) {
   const requestId = typeof msg.data?.request_id === "string" ? msg.data.request_id.trim() : "";
   const method = typeof msg.data?.method === "string" ? msg.data.method.trim() : "";
@@ -839,6 +1041,14 @@ async function handleMessage(
       handleCommandResult(clientId, msg, api);
       return;
     }
+    if (msg.type === "directory_delta") {
+      handleDirectoryDelta(clientId, msg, api);
+      return;
+    }
+    if (msg.type === "group_roster_delta") {
+      handleGroupRosterDelta(clientId, msg, api);
+      return;
+    }
 
     await processWapInboundMessage({
       api,
@@ -927,8 +1137,9 @@ async function processWapInboundMessage(params: {
         groupId: routePeerId,
       })
     : false;
+  const triggerKeywordMatched = isGroup && (msgData.trigger_keywords?.length ?? 0) > 0;
   const wasMentioned = isGroup
-    ? msgData.is_at_me === true || (respondToMentionAll && mentionAllDetected)
+    ? msgData.is_at_me === true || (respondToMentionAll && mentionAllDetected) || triggerKeywordMatched
     : false;
 
   if (isGroup) {
@@ -1231,6 +1442,42 @@ async function processWapInboundMessage(params: {
   }
 }
 
+function normalizeDirectoryEtags(value: unknown): WapDirectoryEtags | undefined {
+  if (typeof value !== "object" || value === null) {
+    return undefined;
+  }
+  const d = value as Record<string, unknown>;
+  return {
+    friends: pickFirstNonEmpty(typeof d.friends === "string" ? d.friends : undefined),
+    groups: pickFirstNonEmpty(typeof d.groups === "string" ? d.groups : undefined),
+    epoch: typeof d.epoch === "number" ? d.epoch : undefined,
+  };
+}
+
+function normalizeDirectoryDeltaSection<T>(
+  value: unknown,
+  idField: string,
+): WapDirectoryDeltaSection<T> | undefined {
+  if (typeof value !== "object" || value === null) {
+    return undefined;
+  }
+  const section = value as Record<string, unknown>;
+  const pickEntries = (list: unknown): T[] =>
+    Array.isArray(list)
+      ? (list.filter(
+          (item) =>
+            typeof item === "object" &&
+            item !== null &&
+            typeof (item as Record<string, unknown>)[idField] === "string",
+        ) as T[])
+      : [];
+  return {
+    added: pickEntries(section.added),
+    removed: normalizeStringList(section.removed),
+    renamed: pickEntries(section.renamed),
+  };
+}
+
 function validateUpstreamMessage(data: unknown): WapUpstreamMessage | null {
   if (typeof data !== "object" || data === null) {
     return null;
@@ -1259,6 +1506,7 @@ function validateUpstreamMessage(data: unknown): WapUpstreamMessage | null {
         rpc_methods: normalizeStringList(d.rpc_methods),
         command_types: normalizeStringList(d.command_types),
         features: normalizeStringList(d.features),
+        directory_etags: normalizeDirectoryEtags(d.directory_etags),
       },
     };
   }
@@ -1288,6 +1536,63 @@ function validateUpstreamMessage(data: unknown): WapUpstreamMessage | null {
     };
   }
 
+  if (obj.type === "directory_delta") {
+    const deltaData = obj.data;
+    if (typeof deltaData !== "object" || deltaData === null) {
+      return null;
+    }
+    const d = deltaData as Record<string, unknown>;
+    if (typeof d.epoch !== "number" || typeof d.base_epoch !== "number") {
+      return null;
+    }
+    return {
+      type: "directory_delta",
+      data: {
+        epoch: d.epoch,
+        base_epoch: d.base_epoch,
+        resync_required: d.resync_required === true ? true : undefined,
+        changes: typeof d.changes === "number" ? d.changes : undefined,
+        friends: normalizeDirectoryDeltaSection<WapDirectoryDeltaFriend>(d.friends, "wxid"),
+        groups: normalizeDirectoryDeltaSection<WapDirectoryDeltaGroup>(d.groups, "talker"),
+      },
+    };
+  }
+
+  if (obj.type === "group_roster_delta") {
+    const deltaData = obj.data;
+    if (typeof deltaData !== "object" || deltaData === null) {
+      return null;
+    }
+    const d = deltaData as Record<string, unknown>;
+    if (typeof d.talker !== "string" || !d.talker.trim()) {
+      return null;
+    }
+    const joined = Array.isArray(d.joined)
+      ? d.joined
+          .filter(
+            (item): item is Record<string, unknown> =>
+              typeof item === "object" && item !== null && typeof (item as Record<string, unknown>).wxid === "string",
+          )
+          .map((item) => ({
+            wxid: item.wxid as string,
+            display_name: typeof item.display_name === "string" ? item.display_name : undefined,
+          }))
+      : undefined;
+    return {
+      type: "group_roster_delta",
+      data: {
+        talker: d.talker.trim(),
+        member_count: typeof d.member_count === "number" ? d.member_count : undefined,
+        previous_member_count:
+          typeof d.previous_member_count === "number" ? d.previous_member_count : undefined,
+        resync_required: d.resync_required === true ? true : undefined,
+        changes: typeof d.changes === "number" ? d.changes : undefined,
+        joined,
+        left: Array.isArray(d.left) ? normalizeStringList(d.left) : undefined,
+      },
+    };
+  }
+
   if (obj.type === "command_result") {
     const resultData = obj.data;
     if (typeof resultData !== "object" || resultData === null) {
@@ -1365,6 +1670,9 @@ function validateUpstreamMessage(data: unknown): WapUpstreamMessage | null {
   const quoteTalker = typeof d.quote_talker === "string" ? d.quote_talker : undefined;
   const quoteType =
     typeof d.quote_type === "number" && Number.isFinite(d.quote_type) ? d.quote_type : undefined;
+  const triggerKeywords = Array.isArray(d.trigger_keywords)
+    ? d.trigger_keywords.map((entry) => String(entry)).filter((entry) => entry.length > 0)
+    : undefined;
   return {
     type: "message",
     data: {
@@ -1391,6 +1699,7 @@ function validateUpstreamMessage(data: unknown): WapUpstreamMessage | null {
       quote_display_name: quoteDisplayName,
       quote_talker: quoteTalker,
       quote_type: quoteType,
+      trigger_keywords: triggerKeywords && triggerKeywords.length > 0 ? triggerKeywords : undefined,
     },
   };
 }
@@ -8,6 +8,9 @@ import com.alibaba.fastjson2.JSONObject;
 import com.alibaba.fastjson2.JSONArray;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.List;
 import java.util.HashSet;
 import java.util.Set;
@@ -40,11 +43,28 @@ Set ALLOW_FROM = Collections.synchronizedSet(new HashSet());
 Set GROUP_ALLOW_CHATS = Collections.synchronizedSet(new HashSet());
 Set GROUP_ALLOW_FROM = Collections.synchronizedSet(new HashSet());
 Set NO_MENTION_CONTEXT_GROUPS = Collections.synchronizedSet(new HashSet());
+Set TRIGGER_KEYWORDS = Collections.synchronizedSet(new HashSet());  // 群聊触发关键词（全局，与群级覆盖合并）
 java.util.Map GROUP_CONFIGS = Collections.synchronizedMap(new java.util.HashMap());
 boolean configReceived = false;  // 是否已收到服务端配置
 String groupPolicy = "open";  // 群策略: open/allowlist/disabled
 boolean requireMentionInGroup = true;  // 群聊是否必须 @ 才触发
 boolean respondToMentionAllInGroup = false;  // 群聊中 @所有人 / 群公告全体 是否可视为 mention
+// 编译后的过滤策略快照：配置落地后整体构建、原子替换；onHandleMsg 只读快照，无锁、无分配
+AtomicReference policySnapshotRef = new AtomicReference();
+AtomicLong policySnapshotCompiles = new AtomicLong();
+AtomicLong keywordTriggerMatches = new AtomicLong();
+String appliedConfigVersion = "";  // 最近一次应用的 config_version，重连时通过请求头带给服务端
+AtomicLong configFullApplies = new AtomicLong();
+AtomicLong configPatchApplies = new AtomicLong();
+AtomicLong configSkips = new AtomicLong();
+Object policyConfigPersistLock = new Object();
+boolean policyConfigRestored = false;
+java.util.ArrayDeque preConfigBuffer = new java.util.ArrayDeque();
+boolean preConfigGateOpen = false;     // 配置已生效且暂存消息已回放完，入站消息直通
+boolean preConfigDrainPending = false;  // 回放线程正在按序处理暂存消息
+AtomicLong preConfigBuffered = new AtomicLong();
+AtomicLong preConfigReplayed = new AtomicLong();
+AtomicLong preConfigDropped = new AtomicLong();
 
 // 心跳间隔（毫秒）
 long DEFAULT_HEARTBEAT_INTERVAL = 20000;
@@ -73,6 +93,77 @@ long RETRY_DELAY_MS = DEFAULT_RETRY_DELAY_MS;
 int MAX_PENDING_MESSAGES = DEFAULT_MAX_PENDING_MESSAGES;
 long MESSAGE_TTL_MS = DEFAULT_MESSAGE_TTL_MS;
 
+// 好友 / 群目录快照有效期（毫秒），过期后下次读取时重建
+long DEFAULT_DIRECTORY_TTL_MS = 60000;
+long DIRECTORY_TTL_MS = DEFAULT_DIRECTORY_TTL_MS;
+// 名单类查询未命中时，快照至少已存在这么久才请求刷新（避免频繁拉全量列表）；发送前的精确目标校验不受此限制
+long DIRECTORY_MISS_REFRESH_MIN_MS = 10000;
+// 后台刷新间隔（毫秒），0 表示只在快照过期 / 未命中 / 重连时按需刷新
+long DEFAULT_DIRECTORY_REFRESH_INTERVAL_MS = 60000;
+long DIRECTORY_REFRESH_INTERVAL_MS = DEFAULT_DIRECTORY_REFRESH_INTERVAL_MS;
+
+// lookup_targets_batch：单次最多查询数、未指定 limit 时每条的默认条数、整批候选总数上限（控制单帧体积）
+int LOOKUP_BATCH_MAX_QUERIES = 50;
+int LOOKUP_BATCH_DEFAULT_LIMIT = 5;
+int LOOKUP_BATCH_MAX_CANDIDATES = 150;
+
+// lookup_targets 结果缓存最大条目数（LRU）
+int LOOKUP_RESULT_CACHE_MAX_ENTRIES = 256;
+
+// resolve_display_names：单次最多解析的 wxid 数量
+int RESOLVE_DISPLAY_NAMES_MAX = 200;
+
+// get_friends / get_groups 分页：默认每页条数与上限（单页需低于 Host 64KB 帧上限）
+int DIRECTORY_PAGE_SIZE_DEFAULT = 100;
+int DIRECTORY_PAGE_SIZE_MAX = 200;
+
+// 最近一次应用的服务端配置落盘文件（pluginDir 下），加载时先用它恢复过滤策略
+String POLICY_CONFIG_FILE = "policy_config.json";
+
+// 尚无任何配置时暂存的入站消息：最多条数与最长保留时间（毫秒），配置到达后重新过滤
+int PRE_CONFIG_BUFFER_MAX = 200;
+long PRE_CONFIG_BUFFER_MAX_AGE_MS = 300000;
+
+// 目录快照落盘文件（pluginDir 下），加载时校验魔数与版本
+String DIRECTORY_SNAPSHOT_FILE = "directory.snapshot";
+int DIRECTORY_SNAPSHOT_MAGIC = 0x57415044;  // "WAPD"
+int DIRECTORY_SNAPSHOT_VERSION = 1;
+
+// 单个 directory_delta 帧最多携带的变更条数与序列化后的 UTF-8 字节数，超过任一则只通知 Host 全量重拉。
+// 字节上限低于 Host 的 maxPayload（64 KiB），超限帧会让 Host 以 1009 断开连接
+int DIRECTORY_DELTA_MAX_CHANGES = 300;
+int DIRECTORY_DELTA_MAX_BYTES = 48 * 1024;
+
+// 群成员名单缓存：最多缓存的群数量（LRU 淘汰）与单个名单有效期（毫秒）
+int DEFAULT_ROSTER_CACHE_MAX_GROUPS = 128;
+int ROSTER_CACHE_MAX_GROUPS = DEFAULT_ROSTER_CACHE_MAX_GROUPS;
+long DEFAULT_ROSTER_CACHE_TTL_MS = 60000;
+long ROSTER_CACHE_TTL_MS = DEFAULT_ROSTER_CACHE_TTL_MS;
+
+// 群成员数缓存有效期（毫秒）；get_groups 只读缓存，缺失 / 过期的由后台线程补齐
+long GROUP_MEMBER_COUNT_TTL_MS = 300000;
+// 取不到成员数（接口失败 / 名单为空）时记为 0 的有效期，避免每次 get_groups 都重新排队拉全量名单
+long GROUP_MEMBER_COUNT_NEGATIVE_TTL_MS = 60000;
+
+// 群成员变动检测：扫描间隔（毫秒，0 表示关闭）与每轮最多扫描的群数量
+long DEFAULT_ROSTER_WATCH_INTERVAL_MS = 60000;
+long ROSTER_WATCH_INTERVAL_MS = DEFAULT_ROSTER_WATCH_INTERVAL_MS;
+int DEFAULT_ROSTER_WATCH_GROUPS_PER_TICK = 8;
+int ROSTER_WATCH_GROUPS_PER_TICK = DEFAULT_ROSTER_WATCH_GROUPS_PER_TICK;
+// 未在配置中出现的群，最近这么久内有入站消息才视为活跃群参与扫描
+long ROSTER_WATCH_ACTIVE_TTL_MS = 1800000;
+// 单个 group_roster_delta 帧最多携带的进出成员数，超过则只通知 Host 全量重拉
+int ROSTER_DELTA_MAX_CHANGES = 300;
+
+// 入站消息补全（发送者显示名、群名、群人数）缓存有效期（毫秒）与最大条目数
+long DEFAULT_INBOUND_ENRICHMENT_TTL_MS = 30000;
+long INBOUND_ENRICHMENT_TTL_MS = DEFAULT_INBOUND_ENRICHMENT_TTL_MS;
+int INBOUND_ENRICHMENT_MAX_ENTRIES = 4096;
+
+// 入站去重：记住最近多少个 msgId（哈希表槽位数取其两倍的 2 的幂，装载率不超过 0.5）
+int INBOUND_DEDUP_CAPACITY = 2048;
+int INBOUND_DEDUP_TABLE_SIZE = 4096;
+
 // 调试：仅打印 msgInfoBean，不做消息转发
 boolean DEFAULT_DEBUG_DUMP_ONLY = false;
 boolean DEBUG_DUMP_ONLY = DEFAULT_DEBUG_DUMP_ONLY;
@@ -85,6 +176,8 @@ OkHttpClient client = null;
 WebSocket webSocket = null;
 Thread heartbeatThread = null;
 Thread retrySenderThread = null;
+Thread rosterWatchThread = null;
+Thread directoryRefreshThread = null;
 boolean isConnected = false;
 boolean shouldReconnect = true;
 int reconnectAttempt = 0;
@@ -98,6 +191,95 @@ int sendCountInWindow = 0;
 // 消息重试队列
 ConcurrentLinkedQueue pendingMessages = new ConcurrentLinkedQueue();
 
+// Bean 反射访问器缓存：className -> {class, methods}，类对象变化（宿主重载）时整表重建
+java.util.Map BEAN_ACCESSOR_TABLES = new ConcurrentHashMap();
+Object BEAN_ACCESSOR_MISSING = new Object();
+AtomicLong beanAccessorMisses = new AtomicLong();     // 需要真正反射解析 Method 的次数
+AtomicLong beanAccessorFallbacks = new AtomicLong();  // 方法不存在或调用失败、回退为空串的次数
+
+// 好友 / 群目录快照（一次拉取构建 wxid / roomId 哈希索引，epoch 单调递增）
+Object directoryLock = new Object();
+AtomicReference directorySnapshotRef = new AtomicReference();
+long directoryEpoch = 0;
+AtomicLong directoryBuilds = new AtomicLong();
+AtomicLong directoryDeltasSent = new AtomicLong();
+Object directoryPersistLock = new Object();
+long directoryPersistedEpoch = 0;
+AtomicLong directoryPersistWrites = new AtomicLong();
+boolean directoryRestored = false;
+Object directoryRefreshSignal = new Object();
+boolean directoryRefreshRequested = false;
+boolean directoryRefreshInFlight = false;
+AtomicLong directoryRefreshRequests = new AtomicLong();
+
+// allow_from 每次随 config 重建时递增，lookup 结果里的 send_status 依赖它
+AtomicLong allowFromVersion = new AtomicLong();
+
+// lookup_targets 结果缓存：(query, kind, limit, fuzzy, 目录 epoch, allow_from 版本) -> 序列化后的 result JSON
+java.util.LinkedHashMap LOOKUP_RESULT_CACHE = new java.util.LinkedHashMap(64, 0.75f, true);
+AtomicLong lookupCacheHits = new AtomicLong();
+AtomicLong lookupCacheMisses = new AtomicLong();
+
+// lookup 模糊匹配使用的规范化字段（含拼音全拼 / 首字母，用于倒排索引收窄候选）
+String[] FRIEND_SEARCH_KEY_FIELDS = new String[] {"remark_key", "nickname_key", "alias_key", "wxid_key", "remark_pinyin", "remark_initials", "nickname_pinyin", "nickname_initials"};
+// 参与 get_friends / get_groups 内容哈希（ETag）的字段，即单项结果里来自目录的字段
+String[] FRIEND_SUMMARY_FIELDS = new String[] {"wxid", "remark", "nickname", "alias"};
+String[] GROUP_SUMMARY_FIELDS = new String[] {"room_id", "name"};
+// 落盘的条目字段：原始字段 + 规范化 / 拼音键，加载时无需重新转写；以 _pinyin / _initials 结尾的字段为空时不写回条目
+String[] FRIEND_PERSIST_FIELDS = new String[] {"wxid", "remark", "nickname", "alias", "display_name", "wxid_key", "remark_key", "nickname_key", "alias_key", "remark_pinyin", "remark_initials", "nickname_pinyin", "nickname_initials"};
+String[] GROUP_PERSIST_FIELDS = new String[] {"room_id", "name", "room_id_key", "name_key", "name_pinyin", "name_initials"};
+String[] GROUP_SEARCH_KEY_FIELDS = new String[] {"name_key", "room_id_key", "name_pinyin", "name_initials"};
+String[] FRIEND_PINYIN_FIELDS = new String[] {"remark_pinyin", "nickname_pinyin"};
+String[] FRIEND_INITIALS_FIELDS = new String[] {"remark_initials", "nickname_initials"};
+String[] GROUP_PINYIN_FIELDS = new String[] {"name_pinyin"};
+String[] GROUP_INITIALS_FIELDS = new String[] {"name_initials"};
+// typo 模式参与编辑距离比较的名称字段，与 matched_by 前缀一一对应
+String[] FRIEND_TYPO_FIELDS = new String[] {"remark_key", "nickname_key", "alias_key"};
+String[] FRIEND_TYPO_LABELS = new String[] {"remark", "nickname", "alias"};
+String[] GROUP_TYPO_FIELDS = new String[] {"name_key"};
+String[] GROUP_TYPO_LABELS = new String[] {"group_name"};
+
+// 群成员名单缓存：normalized talker -> roster（访问序 LinkedHashMap，按群数 LRU + 单条 TTL）
+java.util.LinkedHashMap GROUP_ROSTER_CACHE = new java.util.LinkedHashMap(16, 0.75f, true);
+AtomicLong rosterCacheHits = new AtomicLong();
+AtomicLong rosterCacheMisses = new AtomicLong();
+AtomicLong rosterCacheEvictions = new AtomicLong();
+
+// 群成员变动检测：normalized talker -> {talker, wxids(升序 String[]), checked_at}；活跃群 talker -> 最近入站时间
+java.util.Map ROSTER_WATCH_STATE = new ConcurrentHashMap();
+java.util.Map ROSTER_WATCH_ACTIVE_GROUPS = new ConcurrentHashMap();
+// 群成员数缓存：normalized talker -> {count, fetched_at}；待补齐队列由单个后台线程消费
+java.util.Map GROUP_MEMBER_COUNT_CACHE = new ConcurrentHashMap();
+java.util.Map GROUP_MEMBER_COUNT_PENDING = new ConcurrentHashMap();
+ConcurrentLinkedQueue groupMemberCountQueue = new ConcurrentLinkedQueue();
+Object groupMemberCountWorkerLock = new Object();
+Thread groupMemberCountWorker = null;
+AtomicLong groupMemberCountHits = new AtomicLong();
+AtomicLong groupMemberCountFills = new AtomicLong();
+
+AtomicLong rosterWatchScans = new AtomicLong();
+AtomicLong rosterWatchDeltasSent = new AtomicLong();
+
+// 入站补全缓存："talker|sender" -> 发送者名称，talker -> 群名 / 群人数；miss 耗时用于估算命中节省的时间
+java.util.Map INBOUND_SENDER_CACHE = new ConcurrentHashMap();
+java.util.Map INBOUND_GROUP_CACHE = new ConcurrentHashMap();
+AtomicLong inboundEnrichmentHits = new AtomicLong();
+AtomicLong inboundEnrichmentMisses = new AtomicLong();
+AtomicLong inboundEnrichmentMissNanos = new AtomicLong();
+
+// 入站去重：原始 long 线性探测表（0 为空槽）+ 按到达顺序的环形队列，满了淘汰最旧的 msgId
+Object inboundDedupLock = new Object();
+long[] inboundDedupTable = new long[INBOUND_DEDUP_TABLE_SIZE];
+long[] inboundDedupRing = new long[INBOUND_DEDUP_CAPACITY];
+int inboundDedupRingNext = 0;
+AtomicLong inboundDuplicatesDropped = new AtomicLong();
+
+// 汉字 -> 拼音（Android ICU Han-Latin 音译，按单字缓存；不可用时不生成拼音键）
+java.util.Map PINYIN_CHAR_CACHE = new ConcurrentHashMap();
+Object pinyinTransliterator = null;
+java.lang.reflect.Method pinyinTransliterateMethod = null;
+boolean pinyinUnavailable = false;
+
 // ============================================================
 // 生命周期方法
 // ============================================================
@@ -109,6 +291,8 @@ void onLoad() {
     log("服务器地址: " + maskUrl(SERVER_URL));
     log("allowFrom 配置将从服务端下发");
     log("debug_dump_only=" + DEBUG_DUMP_ONLY);
+    restorePolicyConfigFromDisk();
+    startDirectoryRefresher();
     initWebSocketClient();
     connectToServer();
 }
@@ -204,6 +388,34 @@ void parseConfigLine(String rawLine) {
         MESSAGE_TTL_MS = parseLongOrDefault(value, DEFAULT_MESSAGE_TTL_MS);
         return;
     }
+    if ("directory_ttl_ms".equals(key)) {
+        DIRECTORY_TTL_MS = parseLongOrDefault(value, DEFAULT_DIRECTORY_TTL_MS);
+        return;
+    }
+    if ("directory_refresh_interval_ms".equals(key)) {
+        DIRECTORY_REFRESH_INTERVAL_MS = parseLongOrDefault(value, DEFAULT_DIRECTORY_REFRESH_INTERVAL_MS);
+        return;
+    }
+    if ("roster_cache_max_groups".equals(key)) {
+        ROSTER_CACHE_MAX_GROUPS = (int) parseLongOrDefault(value, DEFAULT_ROSTER_CACHE_MAX_GROUPS);
+        return;
+    }
+    if ("roster_cache_ttl_ms".equals(key)) {
+        ROSTER_CACHE_TTL_MS = parseLongOrDefault(value, DEFAULT_ROSTER_CACHE_TTL_MS);
+        return;
+    }
+    if ("roster_watch_interval_ms".equals(key)) {
+        ROSTER_WATCH_INTERVAL_MS = parseLongOrDefault(value, DEFAULT_ROSTER_WATCH_INTERVAL_MS);
+        return;
+    }
+    if ("roster_watch_groups_per_tick".equals(key)) {
+        ROSTER_WATCH_GROUPS_PER_TICK = (int) parseLongOrDefault(value, DEFAULT_ROSTER_WATCH_GROUPS_PER_TICK);
+        return;
+    }
+    if ("inbound_enrichment_ttl_ms".equals(key)) {
+        INBOUND_ENRICHMENT_TTL_MS = parseLongOrDefault(value, DEFAULT_INBOUND_ENRICHMENT_TTL_MS);
+        return;
+    }
     if ("debug_dump_only".equals(key)) {
         DEBUG_DUMP_ONLY = "true".equalsIgnoreCase(value) || "1".equals(value);
         return;
@@ -235,6 +447,16 @@ void onUnLoad() {
         retrySenderThread = null;
     }
 
+    if (rosterWatchThread != null) {
+        rosterWatchThread.interrupt();
+        rosterWatchThread = null;
+    }
+
+    if (directoryRefreshThread != null) {
+        directoryRefreshThread.interrupt();
+        directoryRefreshThread = null;
+    }
+
     // 清理待发送队列
     int dropped = pendingMessages.size();
     pendingMessages.clear();
@@ -287,6 +509,7 @@ void connectToServer() {
     Request request = new Request.Builder()
         .url(SERVER_URL)
         .addHeader("Authorization", "Bearer " + AUTH_TOKEN)
+        .addHeader("X-Wap-Config-Version", appliedConfigVersion)
         .build();
 
     webSocket = client.newWebSocket(request, new WebSocketListener() {
@@ -296,17 +519,13 @@ void connectToServer() {
             reconnectAttempt = 0;
             missedHeartbeats = 0;
             awaitingPong = false;
-            configReceived = false;  // 重置配置状态
-            ALLOW_FROM.clear();
-            GROUP_ALLOW_CHATS.clear();
-            GROUP_ALLOW_FROM.clear();
-            NO_MENTION_CONTEXT_GROUPS.clear();
-            GROUP_CONFIGS.clear();
-            groupPolicy = "open";
-            requireMentionInGroup = true;
-            respondToMentionAllInGroup = false;
+            // 沿用上一份已应用（或从磁盘恢复）的策略，新配置 / 增量到达后再替换
+            requestDirectoryRefresh();
+            invalidateAllGroupRosters();
+            invalidateInboundEnrichmentCache();
             startHeartbeat();
             startRetrySender();
+            startRosterWatcher();
         }
 
         public void onMessage(WebSocket ws, String text) {
@@ -476,52 +695,1486 @@ void startRetrySender() {
                         log("消息发送失败: " + description + " - " + e.getMessage());
                     }
 
-                    if (!success) {
-                        int retryCount = ((Integer) pending.get("retryCount")).intValue();
-                        retryCount++;
-                        pending.put("retryCount", retryCount);
-                        if (retryCount < MAX_SEND_RETRIES) {
-                            log("消息入队重试 (" + retryCount + "/" + MAX_SEND_RETRIES + "): " + description);
-                            pendingMessages.offer(pending);
-                            Thread.sleep(RETRY_DELAY_MS);
-                        } else {
-                            log("消息重试次数已达上限，丢弃: " + description);
-                        }
-                    }
-                } catch (InterruptedException e) {
-                    break;
-                }
-            }
+                    if (!success) {
+                        int retryCount = ((Integer) pending.get("retryCount")).intValue();
+                        retryCount++;
+                        pending.put("retryCount", retryCount);
+                        if (retryCount < MAX_SEND_RETRIES) {
+                            log("消息入队重试 (" + retryCount + "/" + MAX_SEND_RETRIES + "): " + description);
+                            pendingMessages.offer(pending);
+                            Thread.sleep(RETRY_DELAY_MS);
+                        } else {
+                            log("消息重试次数已达上限，丢弃: " + description);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+    });
+    retrySenderThread.setDaemon(true);
+    retrySenderThread.start();
+}
+
+// 入队待发送消息
+boolean enqueueMessage(String payload, String description) {
+    if (pendingMessages.size() >= MAX_PENDING_MESSAGES) {
+        log("消息队列已满，丢弃新消息: " + description);
+        return false;
+    }
+    pendingMessages.offer(createPendingMessage(payload, description));
+    return true;
+}
+
+boolean sendMessageDirectly(String payload, String description) {
+    if (webSocket == null || !isConnected) {
+        return false;
+    }
+    try {
+        webSocket.send(payload);
+        log("消息发送成功: " + description);
+        return true;
+    } catch (Exception e) {
+        log("消息直发失败，转入队列: " + description + " - " + e.getMessage());
+        return false;
+    }
+}
+
+// ============================================================
+// 好友 / 群目录快照
+// ============================================================
+
+java.util.HashMap buildDirectoryFriendEntry(Object item) {
+    if (item == null) {
+        return null;
+    }
+    String wxid = nullSafeInvokeString(item, "getWxid");
+    if (wxid.isEmpty()) {
+        return null;
+    }
+    String remark = nullSafeInvokeString(item, "getRemark");
+    String nickname = nullSafeInvokeString(item, "getNickname");
+    String alias = nullSafeInvokeString(item, "getAlias");
+
+    java.util.HashMap entry = new java.util.HashMap();
+    entry.put("wxid", wxid);
+    entry.put("remark", remark);
+    entry.put("nickname", nickname);
+    entry.put("alias", alias);
+    entry.put("wxid_key", normalizeNameKey(wxid));
+    entry.put("remark_key", normalizeNameKey(remark));
+    entry.put("nickname_key", normalizeNameKey(nickname));
+    entry.put("alias_key", normalizeNameKey(alias));
+    putPinyinSearchKeys(entry, "remark", (String) entry.get("remark_key"));
+    putPinyinSearchKeys(entry, "nickname", (String) entry.get("nickname_key"));
+    String displayName = "";
+    if (!remark.isEmpty()) {
+        displayName = remark;
+    } else if (!nickname.isEmpty()) {
+        displayName = nickname;
+    } else if (!alias.isEmpty()) {
+        displayName = alias;
+    }
+    entry.put("display_name", displayName);
+    return entry;
+}
+
+java.util.HashMap buildDirectoryGroupEntry(Object item) {
+    if (item == null) {
+        return null;
+    }
+    String roomId = nullSafeInvokeString(item, "getRoomId");
+    if (roomId.isEmpty()) {
+        return null;
+    }
+    String name = nullSafeInvokeString(item, "getName");
+
+    java.util.HashMap entry = new java.util.HashMap();
+    entry.put("room_id", roomId);
+    entry.put("name", name);
+    entry.put("room_id_key", normalizeNameKey(roomId));
+    entry.put("name_key", normalizeNameKey(name));
+    putPinyinSearchKeys(entry, "name", (String) entry.get("name_key"));
+    return entry;
+}
+
+boolean isHanCodePoint(int cp) {
+    return (cp >= 0x4E00 && cp <= 0x9FFF) || (cp >= 0x3400 && cp <= 0x4DBF);
+}
+
+String transliterateHanChar(String ch) {
+    Object cached = PINYIN_CHAR_CACHE.get(ch);
+    if (cached != null) {
+        return (String) cached;
+    }
+    if (pinyinUnavailable) {
+        return null;
+    }
+    if (pinyinTransliterator == null) {
+        // 只有类加载 / getInstance 失败才整体关闭拼音匹配
+        try {
+            Class transliteratorClass = Class.forName("android.icu.text.Transliterator");
+            pinyinTransliterateMethod = transliteratorClass.getMethod("transliterate", new Class[] {String.class});
+            pinyinTransliterator = transliteratorClass.getMethod("getInstance", new Class[] {String.class})
+                .invoke(null, new Object[] {"Han-Latin; Latin-ASCII"});
+        } catch (Throwable t) {
+            pinyinUnavailable = true;
+            log("拼音音译不可用，lookup 将不支持拼音匹配: " + t.getMessage());
+            return null;
+        }
+    }
+    String syllable;
+    try {
+        String raw = String.valueOf(pinyinTransliterateMethod.invoke(pinyinTransliterator, new Object[] {ch}));
+        syllable = raw.toLowerCase().replaceAll("[^a-z]", "");
+    } catch (Throwable t) {
+        // 单个字音译失败：记为空音节，跳过该字，不影响其它字
+        syllable = "";
+    }
+    PINYIN_CHAR_CACHE.put(ch, syllable);
+    return syllable;
+}
+
+// 返回 {全拼, 首字母}；不含汉字或音译不可用时返回 null。非汉字的 ASCII 字母数字原样保留（首字母取每段首字符）
+String[] buildPinyinSearchKeys(String key) {
+    if (key == null || key.isEmpty()) {
+        return null;
+    }
+    StringBuilder full = new StringBuilder();
+    StringBuilder initials = new StringBuilder();
+    boolean hasHan = false;
+    boolean prevAscii = false;
+    int i = 0;
+    while (i < key.length()) {
+        int cp = key.codePointAt(i);
+        int next = i + Character.charCount(cp);
+        if (isHanCodePoint(cp)) {
+            String syllable = transliterateHanChar(key.substring(i, next));
+            if (syllable == null) {
+                return null;
+            }
+            if (!syllable.isEmpty()) {
+                full.append(syllable);
+                initials.append(syllable.charAt(0));
+                hasHan = true;
+            }
+            prevAscii = false;
+        } else if (cp < 128 && Character.isLetterOrDigit(cp)) {
+            full.append((char) cp);
+            if (!prevAscii) {
+                initials.append((char) cp);
+            }
+            prevAscii = true;
+        } else {
+            prevAscii = false;
+        }
+        i = next;
+    }
+    if (!hasHan) {
+        return null;
+    }
+    return new String[] {full.toString(), initials.toString()};
+}
+
+void putPinyinSearchKeys(java.util.HashMap entry, String field, String key) {
+    String[] keys = buildPinyinSearchKeys(key);
+    if (keys == null) {
+        return;
+    }
+    entry.put(field + "_pinyin", keys[0]);
+    entry.put(field + "_initials", keys[1]);
+}
+
+// 拼音查询：仅由 ASCII 字母组成且至少 2 个字符
+boolean isPinyinQuery(String searchKey) {
+    return searchKey != null && searchKey.length() >= 2 && searchKey.matches("^[a-z]+$");
+}
+
+boolean entryKeyMatches(java.util.HashMap entry, String[] fields, String searchKey, boolean prefixOnly) {
+    for (int f = 0; f < fields.length; f++) {
+        String value = (String) entry.get(fields[f]);
+        if (value == null || value.isEmpty()) {
+            continue;
+        }
+        if (prefixOnly ? value.startsWith(searchKey) : value.equals(searchKey)) {
+            return true;
+        }
+    }
+    return false;
+}
+
+java.util.HashMap buildDirectorySnapshot(java.util.HashMap previous) {
+    List friendEntries = new java.util.ArrayList();
+    java.util.HashMap friendsByWxid = new java.util.HashMap();
+    List groupEntries = new java.util.ArrayList();
+    java.util.HashMap groupsByRoomId = new java.util.HashMap();
+    boolean friendsOk = true;
+    boolean groupsOk = true;
+
+    List friends = null;
+    try {
+        friends = getFriendList();
+    } catch (Exception e) {
+        log("获取好友列表失败: " + e.getMessage());
+        friendsOk = false;
+    }
+    if (!friendsOk && previous != null) {
+        // 拉取失败时沿用上一份快照的好友部分，避免发送校验瞬间全部失败
+        friendEntries = (List) previous.get("friends");
+        friendsByWxid = (java.util.HashMap) previous.get("friends_by_wxid");
+    } else if (friends != null) {
+        for (int i = 0; i < friends.size(); i++) {
+            java.util.HashMap entry = buildDirectoryFriendEntry(friends.get(i));
+            if (entry == null) {
+                continue;
+            }
+            friendEntries.add(entry);
+            String key = (String) entry.get("wxid_key");
+            if (!friendsByWxid.containsKey(key)) {
+                friendsByWxid.put(key, entry);
+            }
+        }
+    }
+
+    List groups = null;
+    try {
+        groups = getGroupList();
+    } catch (Exception e) {
+        log("获取群列表失败: " + e.getMessage());
+        groupsOk = false;
+    }
+    if (!groupsOk && previous != null) {
+        groupEntries = (List) previous.get("groups");
+        groupsByRoomId = (java.util.HashMap) previous.get("groups_by_room_id");
+    } else if (groups != null) {
+        for (int i = 0; i < groups.size(); i++) {
+            java.util.HashMap entry = buildDirectoryGroupEntry(groups.get(i));
+            if (entry == null) {
+                continue;
+            }
+            groupEntries.add(entry);
+            String key = (String) entry.get("room_id_key");
+            if (!groupsByRoomId.containsKey(key)) {
+                groupsByRoomId.put(key, entry);
+            }
+        }
+    }
+
+    boolean reuseFriends = !friendsOk && previous != null;
+    boolean reuseGroups = !groupsOk && previous != null;
+    return assembleDirectorySnapshot(
+        friendEntries,
+        friendsByWxid,
+        reuseFriends ? previous.get("friends_ngram_index") : null,
+        reuseFriends ? previous.get("friends_hash") : null,
+        groupEntries,
+        groupsByRoomId,
+        reuseGroups ? previous.get("groups_ngram_index") : null,
+        reuseGroups ? previous.get("groups_hash") : null);
+}
+
+// 组装快照；倒排索引 / 内容哈希为 null 时现算（拉取失败沿用上一份时直接传入旧值）
+java.util.HashMap assembleDirectorySnapshot(List friendEntries, java.util.HashMap friendsByWxid, Object friendsNgramIndex, Object friendsHash,
+                                            List groupEntries, java.util.HashMap groupsByRoomId, Object groupsNgramIndex, Object groupsHash) {
+    java.util.HashMap snapshot = new java.util.HashMap();
+    snapshot.put("friends", friendEntries);
+    snapshot.put("friends_by_wxid", friendsByWxid);
+    snapshot.put("friends_ngram_index", friendsNgramIndex != null
+        ? friendsNgramIndex
+        : buildNgramIndex(friendEntries, FRIEND_SEARCH_KEY_FIELDS));
+    snapshot.put("groups", groupEntries);
+    snapshot.put("groups_by_room_id", groupsByRoomId);
+    snapshot.put("groups_ngram_index", groupsNgramIndex != null
+        ? groupsNgramIndex
+        : buildNgramIndex(groupEntries, GROUP_SEARCH_KEY_FIELDS));
+    snapshot.put("friends_hash", friendsHash != null
+        ? friendsHash
+        : computeDirectoryContentHash(friendsByWxid, FRIEND_SUMMARY_FIELDS));
+    snapshot.put("groups_hash", groupsHash != null
+        ? groupsHash
+        : computeDirectoryContentHash(groupsByRoomId, GROUP_SUMMARY_FIELDS));
+    snapshot.put("friends_sorted", new AtomicReference());
+    snapshot.put("groups_sorted", new AtomicReference());
+    snapshot.put("friends_typo_char_index", new AtomicReference());
+    snapshot.put("groups_typo_char_index", new AtomicReference());
+    snapshot.put("built_at", System.currentTimeMillis());
+    return snapshot;
+}
+
+// 按码点切分字符二元组（CJK 名称通常只有 2~4 个字，二元组即可覆盖任意 >=2 字的子串查询）
+List extractNgrams(String key) {
+    List grams = new java.util.ArrayList();
+    if (key == null || key.isEmpty()) {
+        return grams;
+    }
+    int prev = 0;
+    int cur = Character.charCount(key.codePointAt(0));
+    while (cur < key.length()) {
+        int next = cur + Character.charCount(key.codePointAt(cur));
+        grams.add(key.substring(prev, next));
+        prev = cur;
+        cur = next;
+    }
+    return grams;
+}
+
+// gram -> 升序 entry 下标列表；同一 entry 的多个字段合并去重
+java.util.HashMap buildNgramIndex(List entries, String[] keyFields) {
+    java.util.HashMap index = new java.util.HashMap();
+    for (int i = 0; i < entries.size(); i++) {
+        java.util.HashMap entry = (java.util.HashMap) entries.get(i);
+        HashSet seen = new HashSet();
+        for (int f = 0; f < keyFields.length; f++) {
+            List grams = extractNgrams((String) entry.get(keyFields[f]));
+            for (int g = 0; g < grams.size(); g++) {
+                Object gram = grams.get(g);
+                if (!seen.add(gram)) {
+                    continue;
+                }
+                List postings = (List) index.get(gram);
+                if (postings == null) {
+                    postings = new java.util.ArrayList();
+                    index.put(gram, postings);
+                }
+                postings.add(Integer.valueOf(i));
+            }
+        }
+    }
+    return index;
+}
+
+// 返回可能包含 searchKey 的 entry（保持原列表顺序，是真实命中的超集，调用方仍需 indexOf 校验）
+List findNgramCandidates(List entries, java.util.HashMap index, String searchKey) {
+    List grams = extractNgrams(searchKey);
+    if (grams.isEmpty() || index == null) {
+        // 单字查询无法用二元组收窄，直接返回全部（字段已预先规范化，无反射开销）
+        return entries;
+    }
+
+    List postingLists = new java.util.ArrayList();
+    HashSet seen = new HashSet();
+    for (int g = 0; g < grams.size(); g++) {
+        Object gram = grams.get(g);
+        if (!seen.add(gram)) {
+            continue;
+        }
+        List postings = (List) index.get(gram);
+        if (postings == null) {
+            return new java.util.ArrayList();
+        }
+        postingLists.add(postings);
+    }
+    Collections.sort(postingLists, new java.util.Comparator() {
+        public int compare(Object left, Object right) {
+            return ((List) left).size() - ((List) right).size();
+        }
+    });
+
+    List smallest = (List) postingLists.get(0);
+    List candidates = new java.util.ArrayList();
+    for (int i = 0; i < smallest.size(); i++) {
+        Object idx = smallest.get(i);
+        boolean inAll = true;
+        for (int j = 1; j < postingLists.size(); j++) {
+            if (Collections.binarySearch((List) postingLists.get(j), idx) < 0) {
+                inAll = false;
+                break;
+            }
+        }
+        if (inAll) {
+            candidates.add(entries.get(((Integer) idx).intValue()));
+        }
+    }
+    return candidates;
+}
+
+// 有界编辑距离：超过 maxDistance 时提前返回 maxDistance + 1
+int boundedEditDistance(String left, String right, int maxDistance) {
+    int leftLen = left.length();
+    int rightLen = right.length();
+    if (Math.abs(leftLen - rightLen) > maxDistance) {
+        return maxDistance + 1;
+    }
+    int[] prev = new int[rightLen + 1];
+    int[] cur = new int[rightLen + 1];
+    for (int j = 0; j <= rightLen; j++) {
+        prev[j] = j;
+    }
+    for (int i = 1; i <= leftLen; i++) {
+        cur[0] = i;
+        int rowMin = cur[0];
+        char lc = left.charAt(i - 1);
+        for (int j = 1; j <= rightLen; j++) {
+            int cost = lc == right.charAt(j - 1) ? 0 : 1;
+            int best = prev[j - 1] + cost;
+            if (prev[j] + 1 < best) best = prev[j] + 1;
+            if (cur[j - 1] + 1 < best) best = cur[j - 1] + 1;
+            cur[j] = best;
+            if (best < rowMin) rowMin = best;
+        }
+        if (rowMin > maxDistance) {
+            return maxDistance + 1;
+        }
+        int[] tmp = prev;
+        prev = cur;
+        cur = tmp;
+    }
+    return prev[rightLen];
+}
+
+// 允许的拼写错误数：含汉字的查询 >=2 字允许 1 处；其余 4~7 字符允许 1 处，8 字符以上允许 2 处
+int resolveTypoMaxDistance(String searchKey) {
+    int len = searchKey.codePointCount(0, searchKey.length());
+    if (len < 2) {
+        return 0;
+    }
+    for (int i = 0; i < searchKey.length(); i++) {
+        if (isHanCodePoint(searchKey.charAt(i))) {
+            return 1;
+        }
+    }
+    if (len < 4) {
+        return 0;
+    }
+    return len < 8 ? 1 : 2;
+}
+
+// q-gram 计数过滤：编辑距离 <= k 的字符串至少共享 (查询去重二元组数 - 2k) 个二元组。
+// 阈值 <= 0（2~3 字的中文名等短查询）时改用单字倒排：k 小于查询长度时至少有一个查询字符原样保留，
+// 且每处编辑最多去掉一个去重字符，所以共享去重字符数 >= max(1, 查询去重字符数 - k)
+List findTypoCandidates(List entries, java.util.HashMap index, AtomicReference charIndexHolder, String[] fields, String searchKey, int maxDistance) {
+    HashSet distinctGrams = new HashSet(extractNgrams(searchKey));
+    int threshold = distinctGrams.size() - 2 * maxDistance;
+    if (threshold > 0 && index != null) {
+        return collectPostingHits(entries, index, distinctGrams, threshold);
+    }
+    if (maxDistance >= searchKey.length()) {
+        return entries;
+    }
+    HashSet distinctChars = new HashSet();
+    for (int i = 0; i < searchKey.length(); i++) {
+        distinctChars.add(Character.valueOf(searchKey.charAt(i)));
+    }
+    return collectPostingHits(entries, getTypoCharIndex(charIndexHolder, entries, fields), distinctChars, Math.max(1, distinctChars.size() - maxDistance));
+}
+
+// typo 字段的单字倒排：字符 -> 升序 entry 下标列表；首次短查询 typo 请求时构建并随快照一起失效
+java.util.HashMap getTypoCharIndex(AtomicReference holder, List entries, String[] fields) {
+    java.util.HashMap cached = (java.util.HashMap) holder.get();
+    if (cached != null) {
+        return cached;
+    }
+    java.util.HashMap index = new java.util.HashMap();
+    for (int i = 0; i < entries.size(); i++) {
+        java.util.HashMap entry = (java.util.HashMap) entries.get(i);
+        HashSet seen = new HashSet();
+        for (int f = 0; f < fields.length; f++) {
+            String value = (String) entry.get(fields[f]);
+            if (value == null) {
+                continue;
+            }
+            for (int c = 0; c < value.length(); c++) {
+                Character key = Character.valueOf(value.charAt(c));
+                if (!seen.add(key)) {
+                    continue;
+                }
+                List postings = (List) index.get(key);
+                if (postings == null) {
+                    postings = new java.util.ArrayList();
+                    index.put(key, postings);
+                }
+                postings.add(Integer.valueOf(i));
+            }
+        }
+    }
+    holder.compareAndSet(null, index);
+    return (java.util.HashMap) holder.get();
+}
+
+// 计数过滤：返回在至少 threshold 个 key 的倒排表中出现的 entry（保持原列表顺序）
+List collectPostingHits(List entries, java.util.HashMap index, java.util.Collection keys, int threshold) {
+    int[] counts = new int[entries.size()];
+    List hits = new java.util.ArrayList();
+    java.util.Iterator it = keys.iterator();
+    while (it.hasNext()) {
+        List postings = (List) index.get(it.next());
+        if (postings == null) {
+            continue;
+        }
+        for (int i = 0; i < postings.size(); i++) {
+            Integer idx = (Integer) postings.get(i);
+            int slot = idx.intValue();
+            counts[slot] = counts[slot] + 1;
+            if (counts[slot] == threshold) {
+                hits.add(idx);
+            }
+        }
+    }
+    Collections.sort(hits);
+
+    List candidates = new java.util.ArrayList();
+    for (int i = 0; i < hits.size(); i++) {
+        candidates.add(entries.get(((Integer) hits.get(i)).intValue()));
+    }
+    return candidates;
+}
+
+// 重建并整体替换快照引用；读路径只做一次 get，看到的总是某一份完整快照
+java.util.HashMap refreshDirectorySnapshot() {
+    synchronized (directoryLock) {
+        java.util.HashMap previous = (java.util.HashMap) directorySnapshotRef.get();
+        java.util.HashMap snapshot = buildDirectorySnapshot(previous);
+        directoryEpoch++;
+        snapshot.put("epoch", directoryEpoch);
+        directorySnapshotRef.set(snapshot);
+        directoryBuilds.incrementAndGet();
+        // 在锁内推送，保证 delta 帧按 epoch 顺序发出
+        pushDirectoryDelta(previous, snapshot);
+        schedulePersistDirectorySnapshot(previous, snapshot);
+        return snapshot;
+    }
+}
+
+boolean isDirectoryFriendRenamed(java.util.HashMap before, java.util.HashMap after) {
+    return !before.get("remark").equals(after.get("remark"))
+        || !before.get("nickname").equals(after.get("nickname"))
+        || !before.get("alias").equals(after.get("alias"));
+}
+
+// 按 key 比较两份快照：返回 {added, removed, renamed}，removed 只带 id
+JSONObject diffDirectoryEntries(java.util.HashMap previousByKey, List nextEntries, java.util.HashMap nextByKey, String keyField, String idField, boolean isGroup) {
+    JSONArray added = new JSONArray();
+    JSONArray removed = new JSONArray();
+    JSONArray renamed = new JSONArray();
+    for (int i = 0; i < nextEntries.size(); i++) {
+        java.util.HashMap entry = (java.util.HashMap) nextEntries.get(i);
+        String key = (String) entry.get(keyField);
+        if (nextByKey.get(key) != entry) {
+            continue;
+        }
+        java.util.HashMap before = (java.util.HashMap) previousByKey.get(key);
+        if (before == null) {
+            added.add(isGroup ? buildGroupSummaryFromEntry(entry, false) : buildFriendSummaryFromEntry(entry));
+        } else if (isGroup ? !before.get("name").equals(entry.get("name")) : isDirectoryFriendRenamed(before, entry)) {
+            renamed.add(isGroup ? buildGroupSummaryFromEntry(entry, false) : buildFriendSummaryFromEntry(entry));
+        }
+    }
+    java.util.Iterator it = previousByKey.keySet().iterator();
+    while (it.hasNext()) {
+        Object key = it.next();
+        if (!nextByKey.containsKey(key)) {
+            removed.add(((java.util.HashMap) previousByKey.get(key)).get(idField));
+        }
+    }
+
+    JSONObject diff = new JSONObject();
+    diff.put("added", added);
+    diff.put("removed", removed);
+    diff.put("renamed", renamed);
+    return diff;
+}
+
+int countDirectoryDiffChanges(JSONObject diff) {
+    return diff.getJSONArray("added").size() + diff.getJSONArray("removed").size() + diff.getJSONArray("renamed").size();
+}
+
+// 相邻两份快照有差异时上行 directory_delta；拉取失败沿用旧数据的部分自然没有差异
+void pushDirectoryDelta(java.util.HashMap previous, java.util.HashMap next) {
+    if (previous == null || next == null || webSocket == null || !isConnected) {
+        return;
+    }
+    try {
+        JSONObject friends = diffDirectoryEntries(
+            (java.util.HashMap) previous.get("friends_by_wxid"), (List) next.get("friends"), (java.util.HashMap) next.get("friends_by_wxid"), "wxid_key", "wxid", false);
+        JSONObject groups = diffDirectoryEntries(
+            (java.util.HashMap) previous.get("groups_by_room_id"), (List) next.get("groups"), (java.util.HashMap) next.get("groups_by_room_id"), "room_id_key", "room_id", true);
+        int changes = countDirectoryDiffChanges(friends) + countDirectoryDiffChanges(groups);
+        if (changes == 0) {
+            return;
+        }
+
+        JSONObject data = new JSONObject();
+        data.put("epoch", next.get("epoch"));
+        data.put("base_epoch", previous.get("epoch"));
+        JSONObject payload = new JSONObject();
+        payload.put("type", "directory_delta");
+        payload.put("data", data);
+        String text = null;
+        if (changes <= DIRECTORY_DELTA_MAX_CHANGES) {
+            data.put("friends", friends);
+            data.put("groups", groups);
+            text = payload.toString();
+            if (text.getBytes(StandardCharsets.UTF_8).length > DIRECTORY_DELTA_MAX_BYTES) {
+                data.remove("friends");
+                data.remove("groups");
+                text = null;
+            }
+        }
+        if (text == null) {
+            data.put("resync_required", true);
+            data.put("changes", changes);
+            text = payload.toString();
+        }
+        webSocket.send(text);
+        directoryDeltasSent.incrementAndGet();
+        log("已上报 directory_delta: epoch=" + next.get("epoch") + ", changes=" + changes);
+    } catch (Exception e) {
+        log("上报 directory_delta 失败: " + e.getMessage());
+    }
+}
+
+long getDirectorySnapshotAge(java.util.HashMap snapshot) {
+    if (snapshot == null) {
+        return Long.MAX_VALUE;
+    }
+    return System.currentTimeMillis() - ((Long) snapshot.get("built_at")).longValue();
+}
+
+// 读路径不调用宿主列表接口：快照过期只唤醒后台刷新，先返回现有快照。
+// 仅在从未建立过快照（冷启动且无磁盘快照）时同步构建一次
+java.util.HashMap getDirectorySnapshot() {
+    java.util.HashMap snapshot = (java.util.HashMap) directorySnapshotRef.get();
+    if (snapshot != null) {
+        if (getDirectorySnapshotAge(snapshot) > DIRECTORY_TTL_MS) {
+            requestDirectoryRefresh();
+        }
+        return snapshot;
+    }
+    synchronized (directoryLock) {
+        // 等锁期间其他线程可能已完成构建
+        snapshot = (java.util.HashMap) directorySnapshotRef.get();
+        if (snapshot != null) {
+            return snapshot;
+        }
+        return refreshDirectorySnapshot();
+    }
+}
+
+// 未命中时的兜底：期间已有新快照发布则返回它重查；否则快照不够新就请求后台刷新并立即返回 null。
+// 调用方多在 OkHttp 读线程上，不能等待刷新线程
+java.util.HashMap refreshDirectorySnapshotAfterMiss(java.util.HashMap missed) {
+    java.util.HashMap current = (java.util.HashMap) directorySnapshotRef.get();
+    if (current != missed) {
+        return current;
+    }
+    if (getDirectorySnapshotAge(missed) >= DIRECTORY_MISS_REFRESH_MIN_MS) {
+        requestDirectoryRefresh();
+    }
+    return null;
+}
+
+boolean isDirectoryRefreshPending() {
+    synchronized (directoryRefreshSignal) {
+        return directoryRefreshRequested || directoryRefreshInFlight;
+    }
+}
+
+// 发送校验与 canonical 精确查询：目标在快照中返回 null。未命中时首次尝试总是请求后台刷新（刷新线程会合并请求）
+// 并返回 "directory_refreshing"，由 Host 等待刷新后带 directory_retry 重试一次；重试时不再请求刷新，
+// 刷新仍未完成才继续返回 "directory_refreshing"，否则返回 missCode 作为确定结果
+String checkDirectoryTarget(String talker, boolean isGroup, boolean directoryRetry, String missCode) {
+    java.util.HashMap snapshot = getDirectorySnapshot();
+    java.util.HashMap found = isGroup ? findDirectoryGroup(snapshot, talker) : findDirectoryFriend(snapshot, talker);
+    if (found != null) {
+        return null;
+    }
+    java.util.HashMap current = (java.util.HashMap) directorySnapshotRef.get();
+    if (current != snapshot) {
+        found = isGroup ? findDirectoryGroup(current, talker) : findDirectoryFriend(current, talker);
+        if (found != null) {
+            return null;
+        }
+    }
+    if (!directoryRetry) {
+        requestDirectoryRefresh();
+        return "directory_refreshing";
+    }
+    return isDirectoryRefreshPending() ? "directory_refreshing" : missCode;
+}
+
+void requestDirectoryRefresh() {
+    synchronized (directoryRefreshSignal) {
+        if (!directoryRefreshRequested) {
+            directoryRefreshRequested = true;
+            directoryRefreshRequests.incrementAndGet();
+        }
+        directoryRefreshSignal.notifyAll();
+    }
+}
+
+// 唯一的后台刷新线程：先恢复磁盘快照并立即校准一次，之后按间隔或按需重建
+void startDirectoryRefresher() {
+    if (directoryRefreshThread != null) {
+        directoryRefreshThread.interrupt();
+    }
+
+    directoryRefreshThread = new Thread(new Runnable() {
+        public void run() {
+            restoreDirectorySnapshotFromDisk();
+            boolean refreshNow = true;
+            while (shouldReconnect && !Thread.currentThread().isInterrupted()) {
+                try {
+                    synchronized (directoryRefreshSignal) {
+                        if (!refreshNow && !directoryRefreshRequested) {
+                            directoryRefreshSignal.wait(DIRECTORY_REFRESH_INTERVAL_MS > 0 ? DIRECTORY_REFRESH_INTERVAL_MS : 0L);
+                        }
+                        directoryRefreshRequested = false;
+                        directoryRefreshInFlight = true;
+                    }
+                    refreshNow = false;
+                    refreshDirectorySnapshot();
+                } catch (InterruptedException e) {
+                    break;
+                } catch (Exception e) {
+                    log("目录快照后台刷新失败: " + e.getMessage());
+                } finally {
+                    synchronized (directoryRefreshSignal) {
+                        directoryRefreshInFlight = false;
+                    }
+                }
+            }
+        }
+    });
+    directoryRefreshThread.setDaemon(true);
+    directoryRefreshThread.start();
+}
+
+// ------------------------------------------------------------
+// 快照落盘：二进制格式 magic, version, epoch, built_at, 好友条目, 群条目；先写临时文件再 rename
+// ------------------------------------------------------------
+
+// 内容有变化（或上一份为空 / 来自磁盘）时在后台线程写盘，不占用 directoryLock
+void schedulePersistDirectorySnapshot(java.util.HashMap previous, java.util.HashMap snapshot) {
+    if (previous != null
+        && !Boolean.TRUE.equals(previous.get("restored"))
+        && previous.get("friends_hash").equals(snapshot.get("friends_hash"))
+        && previous.get("groups_hash").equals(snapshot.get("groups_hash"))) {
+        return;
+    }
+    Thread writer = new Thread(new Runnable() {
+        public void run() {
+            persistDirectorySnapshot(snapshot);
+        }
+    });
+    writer.setDaemon(true);
+    writer.start();
+}
+
+void writeDirectoryEntries(java.io.DataOutputStream out, List entries, String[] fields) throws java.io.IOException {
+    out.writeInt(entries.size());
+    for (int i = 0; i < entries.size(); i++) {
+        java.util.HashMap entry = (java.util.HashMap) entries.get(i);
+        for (int f = 0; f < fields.length; f++) {
+            Object value = entry.get(fields[f]);
+            out.writeUTF(value == null ? "" : (String) value);
+        }
+    }
+}
+
+void persistDirectorySnapshot(java.util.HashMap snapshot) {
+    synchronized (directoryPersistLock) {
+        long epoch = ((Long) snapshot.get("epoch")).longValue();
+        if (epoch <= directoryPersistedEpoch) {
+            return;
+        }
+        File target = new File(pluginDir, DIRECTORY_SNAPSHOT_FILE);
+        File temp = new File(pluginDir, DIRECTORY_SNAPSHOT_FILE + ".tmp");
+        java.io.DataOutputStream out = null;
+        try {
+            FileOutputStream fileOut = new FileOutputStream(temp);
+            out = new java.io.DataOutputStream(new java.io.BufferedOutputStream(fileOut));
+            out.writeInt(DIRECTORY_SNAPSHOT_MAGIC);
+            out.writeInt(DIRECTORY_SNAPSHOT_VERSION);
+            out.writeLong(epoch);
+            out.writeLong(((Long) snapshot.get("built_at")).longValue());
+            writeDirectoryEntries(out, (List) snapshot.get("friends"), FRIEND_PERSIST_FIELDS);
+            writeDirectoryEntries(out, (List) snapshot.get("groups"), GROUP_PERSIST_FIELDS);
+            out.flush();
+            fileOut.getFD().sync();
+            out.close();
+            out = null;
+            if (!temp.renameTo(target)) {
+                log("目录快照落盘失败: rename " + temp.getName() + " -> " + target.getName());
+                temp.delete();
+                return;
+            }
+            directoryPersistedEpoch = epoch;
+            directoryPersistWrites.incrementAndGet();
+        } catch (Exception e) {
+            log("目录快照落盘失败: " + e.getMessage());
+            temp.delete();
+        } finally {
+            try { if (out != null) out.close(); } catch (Exception ignore) {}
+        }
+    }
+}
+
+List readDirectoryEntries(java.io.DataInputStream in, String[] fields, String keyField, java.util.HashMap byKey) throws java.io.IOException {
+    int count = in.readInt();
+    if (count < 0) {
+        throw new java.io.IOException("invalid entry count: " + count);
+    }
+    List entries = new java.util.ArrayList(count);
+    for (int i = 0; i < count; i++) {
+        java.util.HashMap entry = new java.util.HashMap();
+        for (int f = 0; f < fields.length; f++) {
+            String value = in.readUTF();
+            if (value.isEmpty() && (fields[f].endsWith("_pinyin") || fields[f].endsWith("_initials"))) {
+                continue;
+            }
+            entry.put(fields[f], value);
+        }
+        entries.add(entry);
+        String key = (String) entry.get(keyField);
+        if (!byKey.containsKey(key)) {
+            byKey.put(key, entry);
+        }
+    }
+    return entries;
+}
+
+// 读取磁盘快照；文件不存在或格式不符时返回 null。built_at 记为加载时刻，避免首次读取即判定过期而同步重建
+java.util.HashMap loadDirectorySnapshotFile() {
+    File file = new File(pluginDir, DIRECTORY_SNAPSHOT_FILE);
+    if (!file.exists() || !file.isFile()) {
+        return null;
+    }
+    java.io.DataInputStream in = null;
+    try {
+        in = new java.io.DataInputStream(new java.io.BufferedInputStream(new java.io.FileInputStream(file)));
+        if (in.readInt() != DIRECTORY_SNAPSHOT_MAGIC || in.readInt() != DIRECTORY_SNAPSHOT_VERSION) {
+            log("目录快照文件版本不符，忽略");
+            return null;
+        }
+        long epoch = in.readLong();
+        long persistedAt = in.readLong();
+        java.util.HashMap friendsByWxid = new java.util.HashMap();
+        List friendEntries = readDirectoryEntries(in, FRIEND_PERSIST_FIELDS, "wxid_key", friendsByWxid);
+        java.util.HashMap groupsByRoomId = new java.util.HashMap();
+        List groupEntries = readDirectoryEntries(in, GROUP_PERSIST_FIELDS, "room_id_key", groupsByRoomId);
+
+        java.util.HashMap snapshot = assembleDirectorySnapshot(friendEntries, friendsByWxid, null, null, groupEntries, groupsByRoomId, null, null);
+        snapshot.put("epoch", epoch);
+        snapshot.put("restored", Boolean.TRUE);
+        snapshot.put("persisted_at", persistedAt);
+        return snapshot;
+    } catch (Exception e) {
+        log("读取目录快照失败: " + e.getMessage());
+        return null;
+    } finally {
+        try { if (in != null) in.close(); } catch (Exception ignore) {}
+    }
+}
+
+// 启动时加载磁盘快照供查询立即使用（由后台刷新线程调用，随后立即重建一次与宿主列表对齐）
+void restoreDirectorySnapshotFromDisk() {
+    java.util.HashMap restored = loadDirectorySnapshotFile();
+    if (restored == null) {
+        return;
+    }
+    long restoredEpoch = ((Long) restored.get("epoch")).longValue();
+    synchronized (directoryLock) {
+        // epoch 跨重启保持单调，分页游标与 ETag 不会与上次运行混淆
+        directoryEpoch = Math.max(directoryEpoch, restoredEpoch);
+        if (!directorySnapshotRef.compareAndSet(null, restored)) {
+            return;
+        }
+        directoryRestored = true;
+    }
+    synchronized (directoryPersistLock) {
+        directoryPersistedEpoch = Math.max(directoryPersistedEpoch, restoredEpoch);
+    }
+    log("已加载目录快照: friends=" + ((List) restored.get("friends")).size() + ", groups=" + ((List) restored.get("groups")).size());
+}
+
+java.util.HashMap findDirectoryFriend(java.util.HashMap snapshot, String wxid) {
+    if (snapshot == null || wxid == null) {
+        return null;
+    }
+    return (java.util.HashMap) ((java.util.HashMap) snapshot.get("friends_by_wxid")).get(normalizeNameKey(wxid));
+}
+
+java.util.HashMap findDirectoryGroup(java.util.HashMap snapshot, String talker) {
+    if (snapshot == null || talker == null) {
+        return null;
+    }
+    return (java.util.HashMap) ((java.util.HashMap) snapshot.get("groups_by_room_id")).get(normalizeNameKey(talker));
+}
+
+// 与顺序无关的内容哈希：逐条哈希后混合相加，快照重建时 O(n) 计算一次
+long computeDirectoryContentHash(java.util.HashMap byKey, String[] fields) {
+    long hash = 0L;
+    java.util.Iterator it = byKey.values().iterator();
+    while (it.hasNext()) {
+        java.util.HashMap entry = (java.util.HashMap) it.next();
+        long entryHash = 17L;
+        for (int i = 0; i < fields.length; i++) {
+            entryHash = entryHash * 31L + ((String) entry.get(fields[i])).hashCode();
+        }
+        hash += entryHash * -7046029254386353131L;  // 0x9E3779B97F4A7C15
+    }
+    return hash;
+}
+
+// 列表 ETag："<内容哈希>-<条数>"；好友的 sendable 取决于 allow_from，一并计入
+String buildDirectoryEtag(java.util.HashMap snapshot, boolean isGroup) {
+    if (isGroup) {
+        long hash = ((Long) snapshot.get("groups_hash")).longValue();
+        return "g" + Long.toHexString(hash) + "-" + ((java.util.HashMap) snapshot.get("groups_by_room_id")).size();
+    }
+    long hash = ((Long) snapshot.get("friends_hash")).longValue();
+    int allowFromHash;
+    synchronized (ALLOW_FROM) {
+        allowFromHash = ALLOW_FROM.hashCode();
+    }
+    hash = hash * 31L + allowFromHash;
+    return "f" + Long.toHexString(hash) + "-" + ((java.util.HashMap) snapshot.get("friends_by_wxid")).size();
+}
+
+// 分页使用的有序视图：normalized wxid / roomId -> 条目（TreeMap 自然序），首次分页请求时构建并随快照一起失效
+java.util.TreeMap getDirectorySortedView(java.util.HashMap snapshot, String viewField, String byKeyField) {
+    AtomicReference holder = (AtomicReference) snapshot.get(viewField);
+    java.util.TreeMap cached = (java.util.TreeMap) holder.get();
+    if (cached != null) {
+        return cached;
+    }
+    java.util.TreeMap view = new java.util.TreeMap((java.util.HashMap) snapshot.get(byKeyField));
+    holder.compareAndSet(null, view);
+    return (java.util.TreeMap) holder.get();
+}
+
+int parseDirectoryPageSize(Object rawPageSize) {
+    int pageSize = DIRECTORY_PAGE_SIZE_DEFAULT;
+    try {
+        if (rawPageSize instanceof Number) {
+            pageSize = ((Number) rawPageSize).intValue();
+        } else if (rawPageSize != null) {
+            String rawText = String.valueOf(rawPageSize).trim();
+            if (!rawText.isEmpty()) {
+                pageSize = Integer.parseInt(rawText);
+            }
+        }
+    } catch (Exception ignore) {}
+
+    if (pageSize <= 0) {
+        return DIRECTORY_PAGE_SIZE_DEFAULT;
+    }
+    if (pageSize > DIRECTORY_PAGE_SIZE_MAX) {
+        return DIRECTORY_PAGE_SIZE_MAX;
+    }
+    return pageSize;
+}
+
+// 仍在等待后台补齐的群；已缓存为 0（取不到）的不算 pending
+int countGroupsWithoutMemberCount(JSONArray groups) {
+    int pending = 0;
+    for (int i = 0; i < groups.size(); i++) {
+        JSONObject group = groups.getJSONObject(i);
+        if (!group.containsKey("member_count") && !GROUP_MEMBER_COUNT_CACHE.containsKey(normalizeId(group.getString("talker")))) {
+            pending++;
+        }
+    }
+    return pending;
+}
+
+// 游标格式 "<epoch>:<上一页最后一个 normalized id>"；按 id 自然序做 keyset 分页，
+// 翻页期间快照重建也能从断点继续，只是会带上 epoch_changed 提示 Host 结合 directory_delta 校正
+JSONObject buildDirectoryPage(boolean isGroup, String cursor, int pageSize, boolean includeMemberCount) {
+    java.util.HashMap snapshot = getDirectorySnapshot();
+    long epoch = ((Long) snapshot.get("epoch")).longValue();
+    java.util.TreeMap view = isGroup
+        ? getDirectorySortedView(snapshot, "groups_sorted", "groups_by_room_id")
+        : getDirectorySortedView(snapshot, "friends_sorted", "friends_by_wxid");
+
+    java.util.SortedMap remaining = view;
+    boolean epochChanged = false;
+    if (cursor != null && !cursor.trim().isEmpty()) {
+        String trimmed = cursor.trim();
+        int sep = trimmed.indexOf(':');
+        if (sep <= 0) {
+            return null;
+        }
+        long cursorEpoch = parseLongOrDefault(trimmed.substring(0, sep), -1L);
+        if (cursorEpoch < 0) {
+            return null;
+        }
+        epochChanged = cursorEpoch != epoch;
+        remaining = view.tailMap(trimmed.substring(sep + 1), false);
+    }
+
+    JSONArray items = new JSONArray();
+    String lastKey = null;
+    java.util.Iterator it = remaining.entrySet().iterator();
+    while (it.hasNext() && items.size() < pageSize) {
+        java.util.Map.Entry entry = (java.util.Map.Entry) it.next();
+        java.util.HashMap record = (java.util.HashMap) entry.getValue();
+        items.add(isGroup ? buildGroupSummaryFromEntry(record, includeMemberCount) : buildFriendSummaryFromEntry(record));
+        lastKey = (String) entry.getKey();
+    }
+
+    JSONObject result = new JSONObject();
+    result.put(isGroup ? "groups" : "friends", items);
+    result.put("count", items.size());
+    result.put("total", view.size());
+    if (isGroup && includeMemberCount) {
+        result.put("member_counts_pending", countGroupsWithoutMemberCount(items));
+    }
+    result.put("epoch", epoch);
+    result.put("etag", buildDirectoryEtag(snapshot, isGroup));
+    if (epochChanged) {
+        result.put("epoch_changed", true);
+    }
+    if (it.hasNext() && lastKey != null) {
+        result.put("next_cursor", epoch + ":" + lastKey);
+    }
+    return result;
+}
+
+JSONObject buildDirectoryStats() {
+    java.util.HashMap snapshot = (java.util.HashMap) directorySnapshotRef.get();
+    JSONObject stats = new JSONObject();
+    stats.put("epoch", directoryEpoch);
+    stats.put("builds", directoryBuilds.get());
+    stats.put("deltas_sent", directoryDeltasSent.get());
+    stats.put("restored", directoryRestored);
+    stats.put("persist_writes", directoryPersistWrites.get());
+    stats.put("ttl_ms", DIRECTORY_TTL_MS);
+    stats.put("refresh_interval_ms", DIRECTORY_REFRESH_INTERVAL_MS);
+    stats.put("refresh_requests", directoryRefreshRequests.get());
+    if (snapshot != null) {
+        stats.put("friends", ((List) snapshot.get("friends")).size());
+        stats.put("groups", ((List) snapshot.get("groups")).size());
+        stats.put("friend_ngrams", ((java.util.HashMap) snapshot.get("friends_ngram_index")).size());
+        stats.put("group_ngrams", ((java.util.HashMap) snapshot.get("groups_ngram_index")).size());
+        stats.put("age_ms", getDirectorySnapshotAge(snapshot));
+    }
+    stats.put("pinyin_available", !pinyinUnavailable);
+    stats.put("pinyin_chars", PINYIN_CHAR_CACHE.size());
+    return stats;
+}
+
+// ============================================================
+// 群成员名单缓存
+// ============================================================
+
+java.util.HashMap buildGroupRosterMember(Object item) {
+    if (item == null) {
+        return null;
+    }
+    String wxid = extractGroupMemberWxid(item);
+    if (wxid.isEmpty()) {
+        return null;
+    }
+    String displayName = nullSafeInvokeString(item, "getDisplayName");
+    String groupNick = nullSafeInvokeString(item, "getGroupNick");
+    String nickname = nullSafeInvokeString(item, "getNickname");
+    String name = nullSafeInvokeString(item, "getName");
+
+    java.util.HashMap member = new java.util.HashMap();
+    member.put("wxid", wxid);
+    member.put("wxid_key", normalizeNameKey(wxid));
+    member.put("display_name", displayName);
+    member.put("group_nick", groupNick);
+    member.put("nickname", nickname);
+    member.put("name", name);
+    // 与 getGroupMemberDisplayName 的优先级一致：群内显示名 > 群昵称 > 昵称 > 名称
+    String groupDisplayName = "";
+    if (!displayName.isEmpty()) {
+        groupDisplayName = displayName;
+    } else if (!groupNick.isEmpty()) {
+        groupDisplayName = groupNick;
+    } else if (!nickname.isEmpty()) {
+        groupDisplayName = nickname;
+    } else if (!name.isEmpty()) {
+        groupDisplayName = name;
+    }
+    member.put("group_display_name", groupDisplayName);
+    return member;
+}
+
+java.util.HashMap buildGroupRoster(String groupTalker, List members) {
+    List entries = new java.util.ArrayList();
+    java.util.HashMap byWxid = new java.util.HashMap();
+    if (members != null) {
+        for (int i = 0; i < members.size(); i++) {
+            java.util.HashMap member = buildGroupRosterMember(members.get(i));
+            if (member == null) {
+                continue;
+            }
+            entries.add(member);
+            String key = (String) member.get("wxid_key");
+            if (!byWxid.containsKey(key)) {
+                byWxid.put(key, member);
+            }
+        }
+    }
+
+    java.util.HashMap roster = new java.util.HashMap();
+    roster.put("talker", groupTalker.trim());
+    roster.put("members", entries);
+    roster.put("members_by_wxid", byWxid);
+    roster.put("size", members == null ? 0 : members.size());
+    roster.put("fetched_at", System.currentTimeMillis());
+    roster.put("name_index", new AtomicReference());
+    return roster;
+}
+
+// 同一群的多次读取（显示名、成员数、@ 解析）共享一次 getGroupMemberList 拉取；拉取失败返回 null
+java.util.HashMap getGroupRoster(String groupTalker) {
+    if (groupTalker == null || groupTalker.trim().isEmpty()) {
+        return null;
+    }
+    String key = normalizeNameKey(groupTalker);
+    synchronized (GROUP_ROSTER_CACHE) {
+        java.util.HashMap cached = (java.util.HashMap) GROUP_ROSTER_CACHE.get(key);
+        if (cached != null) {
+            long age = System.currentTimeMillis() - ((Long) cached.get("fetched_at")).longValue();
+            if (age <= ROSTER_CACHE_TTL_MS) {
+                rosterCacheHits.incrementAndGet();
+                return cached;
+            }
+            GROUP_ROSTER_CACHE.remove(key);
+        }
+    }
+    rosterCacheMisses.incrementAndGet();
+
+    List members = null;
+    try {
+        members = getGroupMemberList(groupTalker);
+    } catch (Exception e) {
+        log("获取群成员失败: " + e.getMessage());
+        return null;
+    }
+    java.util.HashMap roster = buildGroupRoster(groupTalker, members);
+
+    synchronized (GROUP_ROSTER_CACHE) {
+        GROUP_ROSTER_CACHE.put(key, roster);
+        while (GROUP_ROSTER_CACHE.size() > Math.max(1, ROSTER_CACHE_MAX_GROUPS)) {
+            java.util.Iterator it = GROUP_ROSTER_CACHE.keySet().iterator();
+            it.next();
+            it.remove();
+            rosterCacheEvictions.incrementAndGet();
+        }
+    }
+    return roster;
+}
+
+// 名单快照内的成员名称索引：normalized wxid / 群内显示名 / 全局显示名 -> 成员下标，首次 @ 解析时构建并随名单一起失效
+java.util.HashMap getGroupRosterNameIndex(String groupTalker, java.util.HashMap roster) {
+    AtomicReference holder = (AtomicReference) roster.get("name_index");
+    java.util.HashMap cached = (java.util.HashMap) holder.get();
+    if (cached != null) {
+        return cached;
+    }
+    synchronized (holder) {
+        cached = (java.util.HashMap) holder.get();
+        if (cached != null) {
+            return cached;
+        }
+
+        List members = (List) roster.get("members");
+        java.util.HashMap exact = new java.util.HashMap();
+        List groupNames = new java.util.ArrayList();
+        List globalNames = new java.util.ArrayList();
+        for (int i = 0; i < members.size(); i++) {
+            java.util.HashMap member = (java.util.HashMap) members.get(i);
+            String wxid = (String) member.get("wxid");
+            String groupName = normalizeNameKey(resolveGroupMemberDisplayNameInRoster(groupTalker, roster, wxid));
+            String globalName = normalizeNameKey(getFriendDisplayName(wxid));
+            groupNames.add(groupName);
+            globalNames.add(globalName);
+
+            HashSet memberKeys = new HashSet();
+            memberKeys.add(member.get("wxid_key"));
+            if (!groupName.isEmpty()) memberKeys.add(groupName);
+            if (!globalName.isEmpty()) memberKeys.add(globalName);
+            java.util.Iterator it = memberKeys.iterator();
+            while (it.hasNext()) {
+                Object nameKey = it.next();
+                List slots = (List) exact.get(nameKey);
+                if (slots == null) {
+                    slots = new java.util.ArrayList();
+                    exact.put(nameKey, slots);
+                }
+                slots.add(Integer.valueOf(i));
+            }
+        }
+
+        java.util.HashMap nameIndex = new java.util.HashMap();
+        nameIndex.put("exact", exact);
+        nameIndex.put("group_names", groupNames);
+        nameIndex.put("global_names", globalNames);
+        holder.set(nameIndex);
+        return nameIndex;
+    }
+}
+
+java.util.HashMap findGroupRosterMember(java.util.HashMap roster, String memberWxid) {
+    if (roster == null || memberWxid == null) {
+        return null;
+    }
+    return (java.util.HashMap) ((java.util.HashMap) roster.get("members_by_wxid")).get(normalizeNameKey(memberWxid));
+}
+
+void invalidateGroupRoster(String groupTalker) {
+    if (groupTalker == null) {
+        return;
+    }
+    synchronized (GROUP_ROSTER_CACHE) {
+        GROUP_ROSTER_CACHE.remove(normalizeNameKey(groupTalker));
+    }
+}
+
+void invalidateAllGroupRosters() {
+    synchronized (GROUP_ROSTER_CACHE) {
+        GROUP_ROSTER_CACHE.clear();
+    }
+}
+
+JSONObject buildGroupRosterCacheStats() {
+    JSONObject stats = new JSONObject();
+    synchronized (GROUP_ROSTER_CACHE) {
+        stats.put("size", GROUP_ROSTER_CACHE.size());
+    }
+    stats.put("max_groups", ROSTER_CACHE_MAX_GROUPS);
+    stats.put("ttl_ms", ROSTER_CACHE_TTL_MS);
+    stats.put("hits", rosterCacheHits.get());
+    stats.put("misses", rosterCacheMisses.get());
+    stats.put("evictions", rosterCacheEvictions.get());
+    return stats;
+}
+
+// ============================================================
+// 群成员变动检测
+// ============================================================
+
+void startRosterWatcher() {
+    if (rosterWatchThread != null) {
+        rosterWatchThread.interrupt();
+        rosterWatchThread = null;
+    }
+    if (ROSTER_WATCH_INTERVAL_MS <= 0) {
+        return;
+    }
+
+    rosterWatchThread = new Thread(new Runnable() {
+        public void run() {
+            while (isConnected && !Thread.currentThread().isInterrupted()) {
+                try {
+                    Thread.sleep(ROSTER_WATCH_INTERVAL_MS);
+                    if (webSocket != null && isConnected) {
+                        runRosterWatchTick();
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                } catch (Exception e) {
+                    log("群成员变动检测失败: " + e.getMessage());
+                }
+            }
+        }
+    });
+    rosterWatchThread.setDaemon(true);
+    rosterWatchThread.start();
+}
+
+void markRosterWatchActiveGroup(String talker) {
+    if (talker == null || talker.trim().isEmpty()) {
+        return;
+    }
+    ROSTER_WATCH_ACTIVE_GROUPS.put(normalizeId(talker), Long.valueOf(System.currentTimeMillis()));
+}
+
+// 待扫描的群：配置中显式列出的群 + 最近有入站消息的群（通配符 "*" 不展开）
+List collectRosterWatchTalkers() {
+    java.util.LinkedHashSet talkers = new java.util.LinkedHashSet();
+    synchronized (GROUP_ALLOW_CHATS) {
+        java.util.Iterator it = GROUP_ALLOW_CHATS.iterator();
+        while (it.hasNext()) {
+            talkers.add(it.next());
+        }
+    }
+    synchronized (GROUP_CONFIGS) {
+        java.util.Iterator it = GROUP_CONFIGS.keySet().iterator();
+        while (it.hasNext()) {
+            talkers.add(it.next());
+        }
+    }
+    long now = System.currentTimeMillis();
+    java.util.Iterator activeIt = ROSTER_WATCH_ACTIVE_GROUPS.entrySet().iterator();
+    while (activeIt.hasNext()) {
+        java.util.Map.Entry entry = (java.util.Map.Entry) activeIt.next();
+        if (now - ((Long) entry.getValue()).longValue() > ROSTER_WATCH_ACTIVE_TTL_MS) {
+            activeIt.remove();
+            continue;
+        }
+        talkers.add(entry.getKey());
+    }
+    talkers.remove("*");
+
+    List result = new java.util.ArrayList();
+    java.util.Iterator it = talkers.iterator();
+    while (it.hasNext()) {
+        String talker = (String) it.next();
+        if (talker != null && talker.endsWith("@chatroom")) {
+            result.add(talker);
+        }
+    }
+    return result;
+}
+
+long getRosterWatchCheckedAt(String talker) {
+    java.util.HashMap state = (java.util.HashMap) ROSTER_WATCH_STATE.get(talker);
+    return state == null ? 0L : ((Long) state.get("checked_at")).longValue();
+}
+
+// 每轮按上次检查时间从旧到新取至多 ROSTER_WATCH_GROUPS_PER_TICK 个群，轮转覆盖全部待扫描群
+void runRosterWatchTick() {
+    List talkers = collectRosterWatchTalkers();
+    java.util.Iterator stateIt = ROSTER_WATCH_STATE.keySet().iterator();
+    while (stateIt.hasNext()) {
+        if (!talkers.contains(stateIt.next())) {
+            stateIt.remove();
+        }
+    }
+    if (talkers.isEmpty()) {
+        return;
+    }
+    Collections.sort(talkers, new java.util.Comparator() {
+        public int compare(Object a, Object b) {
+            long left = getRosterWatchCheckedAt((String) a);
+            long right = getRosterWatchCheckedAt((String) b);
+            return left < right ? -1 : (left > right ? 1 : 0);
         }
     });
-    retrySenderThread.setDaemon(true);
-    retrySenderThread.start();
+
+    int budget = Math.min(talkers.size(), Math.max(1, ROSTER_WATCH_GROUPS_PER_TICK));
+    for (int i = 0; i < budget; i++) {
+        if (!isConnected || Thread.currentThread().isInterrupted()) {
+            return;
+        }
+        scanGroupRoster((String) talkers.get(i));
+    }
 }
 
-// 入队待发送消息
-boolean enqueueMessage(String payload, String description) {
-    if (pendingMessages.size() >= MAX_PENDING_MESSAGES) {
-        log("消息队列已满，丢弃新消息: " + description);
-        return false;
+String[] buildSortedRosterWxids(java.util.HashMap roster) {
+    List members = (List) roster.get("members");
+    java.util.TreeSet unique = new java.util.TreeSet();
+    for (int i = 0; i < members.size(); i++) {
+        unique.add(((java.util.HashMap) members.get(i)).get("wxid"));
     }
-    pendingMessages.offer(createPendingMessage(payload, description));
-    return true;
+    return (String[]) unique.toArray(new String[unique.size()]);
 }
 
-boolean sendMessageDirectly(String payload, String description) {
+void scanGroupRoster(String talker) {
+    // 跳过名单缓存，拉取最新名单；结果同时回填缓存供显示名 / @ 解析使用
+    invalidateGroupRoster(talker);
+    java.util.HashMap roster = getGroupRoster(talker);
+    rosterWatchScans.incrementAndGet();
+    if (roster == null) {
+        return;
+    }
+    String[] current = buildSortedRosterWxids(roster);
+    putGroupMemberCount(talker, ((Integer) roster.get("size")).intValue());
+
+    java.util.HashMap previous = (java.util.HashMap) ROSTER_WATCH_STATE.get(talker);
+    java.util.HashMap state = new java.util.HashMap();
+    state.put("talker", talker);
+    state.put("wxids", current);
+    state.put("checked_at", Long.valueOf(System.currentTimeMillis()));
+    ROSTER_WATCH_STATE.put(talker, state);
+    // 首次扫描只记录基线；拉取到空名单视为宿主异常，不当作全员退群
+    if (previous == null || current.length == 0) {
+        return;
+    }
+
+    String[] before = (String[]) previous.get("wxids");
+    List joined = new java.util.ArrayList();
+    List left = new java.util.ArrayList();
+    int i = 0;
+    int j = 0;
+    while (i < before.length || j < current.length) {
+        int cmp;
+        if (i >= before.length) {
+            cmp = 1;
+        } else if (j >= current.length) {
+            cmp = -1;
+        } else {
+            cmp = before[i].compareTo(current[j]);
+        }
+        if (cmp == 0) {
+            i++;
+            j++;
+        } else if (cmp < 0) {
+            left.add(before[i]);
+            i++;
+        } else {
+            joined.add(current[j]);
+            j++;
+        }
+    }
+    if (joined.isEmpty() && left.isEmpty()) {
+        return;
+    }
+    INBOUND_GROUP_CACHE.remove(talker);
+    pushGroupRosterDelta(talker, roster, joined, left, before.length);
+}
+
+void pushGroupRosterDelta(String talker, java.util.HashMap roster, List joined, List left, int previousSize) {
     if (webSocket == null || !isConnected) {
-        return false;
+        return;
     }
     try {
-        webSocket.send(payload);
-        log("消息发送成功: " + description);
-        return true;
+        JSONObject data = new JSONObject();
+        data.put("talker", talker);
+        data.put("member_count", roster.get("size"));
+        data.put("previous_member_count", previousSize);
+        int changes = joined.size() + left.size();
+        if (changes > ROSTER_DELTA_MAX_CHANGES) {
+            data.put("resync_required", true);
+            data.put("changes", changes);
+        } else {
+            JSONArray joinedArray = new JSONArray();
+            for (int k = 0; k < joined.size(); k++) {
+                String wxid = (String) joined.get(k);
+                JSONObject member = new JSONObject();
+                member.put("wxid", wxid);
+                java.util.HashMap entry = findGroupRosterMember(roster, wxid);
+                String displayName = entry == null ? "" : (String) entry.get("group_display_name");
+                if (displayName != null && !displayName.isEmpty()) {
+                    member.put("display_name", displayName);
+                }
+                joinedArray.add(member);
+            }
+            JSONArray leftArray = new JSONArray();
+            for (int k = 0; k < left.size(); k++) {
+                leftArray.add(left.get(k));
+            }
+            data.put("joined", joinedArray);
+            data.put("left", leftArray);
+        }
+        JSONObject payload = new JSONObject();
+        payload.put("type", "group_roster_delta");
+        payload.put("data", data);
+        webSocket.send(payload.toString());
+        rosterWatchDeltasSent.incrementAndGet();
+        log("已上报 group_roster_delta: " + talker + ", +" + joined.size() + " / -" + left.size());
     } catch (Exception e) {
-        log("消息直发失败，转入队列: " + description + " - " + e.getMessage());
-        return false;
+        log("上报 group_roster_delta 失败: " + e.getMessage());
     }
 }
 
+JSONObject buildRosterWatchStats() {
+    JSONObject stats = new JSONObject();
+    stats.put("interval_ms", ROSTER_WATCH_INTERVAL_MS);
+    stats.put("groups_per_tick", ROSTER_WATCH_GROUPS_PER_TICK);
+    stats.put("watched_groups", ROSTER_WATCH_STATE.size());
+    stats.put("active_groups", ROSTER_WATCH_ACTIVE_GROUPS.size());
+    stats.put("scans", rosterWatchScans.get());
+    stats.put("deltas_sent", rosterWatchDeltasSent.get());
+    return stats;
+}
+
 // ============================================================
 // 消息处理
 // ============================================================
@@ -542,8 +2195,17 @@ void onHandleMsg(Object msgInfoBean) {
         return;
     }
 
-    // 检查是否已收到服务端配置
-    if (!configReceived) {
+    // 尚无任何配置、或暂存消息还没回放完时继续排队（见 replayPreConfigMessages）；放行后不再加锁
+    if (!preConfigGateOpen && bufferPreConfigMessage(msgInfoBean)) {
+        return;
+    }
+    filterAndForwardInboundMessage(msgInfoBean);
+}
+
+// 过滤只读配置快照；通过后补全并上报
+void filterAndForwardInboundMessage(Object msgInfoBean) {
+    java.util.HashMap policy = (java.util.HashMap) policySnapshotRef.get();
+    if (!configReceived || policy == null) {
         return;
     }
 
@@ -553,38 +2215,64 @@ void onHandleMsg(Object msgInfoBean) {
     boolean isNotifyAll = resolveIsNotifyAll(msgInfoBean);
     boolean isAnnounceAll = resolveIsAnnounceAll(msgInfoBean);
     boolean isMentionAll = isNotifyAll || isAnnounceAll;
+    List matchedKeywords = null;
 
     if (msgInfoBean.isGroupChat()) {
-        // 群策略过滤（仿 Discord/TG 的 groupPolicy 层）
-        if (!isGroupChatAllowedByPolicy(talker)) {
-            return;
+        // 群策略过滤（仿 Discord/TG 的 groupPolicy 层），决策已在配置下发时预编译
+        java.util.Map decision = (java.util.Map) ((java.util.Map) policy.get("groups")).get(normalizeId(talker));
+        if (decision == null) {
+            decision = (java.util.Map) policy.get("default");
         }
-        if (!isGroupEnabledByConfig(talker)) {
+        if (!((Boolean) decision.get("admitted")).booleanValue()) {
             return;
         }
-        String groupSenderPolicy = resolveGroupSenderPolicy(talker);
-        if ("disabled".equals(groupSenderPolicy)) {
+        markRosterWatchActiveGroup(talker);
+        if (((Boolean) decision.get("sender_disabled")).booleanValue()) {
             return;
         }
-        Set effectiveGroupAllowFrom = resolveEffectiveGroupAllowFrom(talker);
-        if ("allowlist".equals(groupSenderPolicy) && effectiveGroupAllowFrom.size() > 0 && !effectiveGroupAllowFrom.contains(normalizeId(sender))) {
+        Set senderAllowFrom = (Set) decision.get("sender_allow_from");
+        if (senderAllowFrom != null && !senderAllowFrom.contains(normalizeId(sender))) {
             return;
         }
+        // 触发关键词与 @ 同级：命中即视为 mention，命中列表随消息上报
+        java.util.HashMap keywordAutomaton = (java.util.HashMap) decision.get("keyword_automaton");
+        if (keywordAutomaton != null) {
+            String keywordText = null;
+            try {
+                keywordText = msgInfoBean.getContent();
+            } catch (Exception ignore) {}
+            matchedKeywords = matchKeywordAutomaton(keywordAutomaton, keywordText);
+            if (matchedKeywords != null) {
+                keywordTriggerMatches.incrementAndGet();
+            }
+        }
         // 群聊可选：仅 @ 我时触发；部分群可配置为未@也上报用于上下文
         if (
-            isGroupMentionRequired(talker)
+            ((Boolean) decision.get("mention_required")).booleanValue()
             && !isMentionedMe
-            && !(isMentionAll && isGroupRespondToMentionAll(talker))
-            && !isNoMentionContextGroupEnabled(talker)
+            && !(isMentionAll && ((Boolean) decision.get("respond_to_mention_all")).booleanValue())
+            && matchedKeywords == null
+            && !((Boolean) decision.get("no_mention_context")).booleanValue()
         ) {
             return;
         }
     } else {
-        if (ALLOW_FROM.size() > 0 && !ALLOW_FROM.contains(normalizeId(sender))) {
+        Set allowFrom = (Set) policy.get("allow_from");
+        if (allowFrom.size() > 0 && !allowFrom.contains(normalizeId(sender))) {
             return;
         }
     }
 
+    // 去重：同一 msgId 重复投递（引用重渲染、重连后重同步等）在补全之前丢弃
+    long msgId = 0;
+    try {
+        msgId = msgInfoBean.getMsgId();
+    } catch (Exception ignore) {}
+    if (checkAndMarkInboundMsgSeen(msgId)) {
+        inboundDuplicatesDropped.incrementAndGet();
+        return;
+    }
+
     // 调试模式：完整打印 msgInfoBean 后立即结束，不进行后续转发
     if (DEBUG_DUMP_ONLY) {
         dumpMsgInfoBean(msgInfoBean);
@@ -597,10 +2285,14 @@ void onHandleMsg(Object msgInfoBean) {
         if (content == null || content.trim().isEmpty()) {
             return;
         }
-        String senderGroupDisplayName = msgInfoBean.isGroupChat() ? getGroupMemberDisplayName(talker, sender) : "";
-        String senderDisplayName = resolveInboundSenderDisplayName(msgInfoBean, sender, talker);
-        String groupName = msgInfoBean.isGroupChat() ? getGroupNameByTalker(talker) : "";
-        int groupMemberCount = msgInfoBean.isGroupChat() ? getResolvedGroupMemberCount(talker) : 0;
+        boolean isGroupChat = msgInfoBean.isGroupChat();
+        // 群聊一次取出发送者名称，群内显示名与兜底名共用；私聊只在 bean 未带显示名时才查
+        java.util.HashMap senderNames = isGroupChat ? getInboundSenderNames(talker, sender, true) : null;
+        String senderGroupDisplayName = senderNames != null ? (String) senderNames.get("group_display_name") : "";
+        String senderDisplayName = resolveInboundSenderDisplayName(msgInfoBean, sender, talker, senderNames);
+        java.util.HashMap groupInfo = isGroupChat ? getInboundGroupInfo(talker) : null;
+        String groupName = groupInfo != null ? (String) groupInfo.get("group_name") : "";
+        int groupMemberCount = groupInfo != null ? ((Integer) groupInfo.get("member_count")).intValue() : 0;
 
         JSONObject msg = new JSONObject();
         msg.put("type", "message");
@@ -633,6 +2325,9 @@ void onHandleMsg(Object msgInfoBean) {
         if (atUsers != null) {
             data.put("at_user_list", atUsers);
         }
+        if (matchedKeywords != null) {
+            data.put("trigger_keywords", matchedKeywords);
+        }
         appendInboundQuoteMetadata(data, msgInfoBean);
 
         msg.put("data", data);
@@ -913,19 +2608,14 @@ String getFriendWxidByKeyword(String keywordRaw) {
         return keyword;
     }
 
-    List friends = null;
-    try {
-        friends = getFriendList();
-    } catch (Exception e) {
-        log("获取好友列表失败: " + e.getMessage());
-        return null;
-    }
-    if (friends == null || friends.isEmpty()) {
+    java.util.HashMap snapshot = getDirectorySnapshot();
+    String exactKey = normalizeNameKey(keyword);
+    String fuzzyKey = exactKey;
+    List friends = findNgramCandidates((List) snapshot.get("friends"), (java.util.HashMap) snapshot.get("friends_ngram_index"), fuzzyKey);
+    if (friends.isEmpty()) {
         return null;
     }
 
-    String exactKey = normalizeNameKey(keyword);
-    String fuzzyKey = exactKey;
     List remarkExactMatches = new java.util.ArrayList();
     List nicknameExactMatches = new java.util.ArrayList();
     List idExactMatches = new java.util.ArrayList();
@@ -934,19 +2624,12 @@ String getFriendWxidByKeyword(String keywordRaw) {
     List idFuzzyMatches = new java.util.ArrayList();
 
     for (int i = 0; i < friends.size(); i++) {
-        Object item = friends.get(i);
-        if (item == null) {
-            continue;
-        }
-        String wxid = nullSafeInvokeString(item, "getWxid");
-        String remark = nullSafeInvokeString(item, "getRemark");
-        String nickname = nullSafeInvokeString(item, "getNickname");
-        String alias = nullSafeInvokeString(item, "getAlias");
-
-        String wxidKey = normalizeNameKey(wxid);
-        String remarkKey = normalizeNameKey(remark);
-        String nicknameKey = normalizeNameKey(nickname);
-        String aliasKey = normalizeNameKey(alias);
+        java.util.HashMap entry = (java.util.HashMap) friends.get(i);
+        String wxid = (String) entry.get("wxid");
+        String wxidKey = (String) entry.get("wxid_key");
+        String remarkKey = (String) entry.get("remark_key");
+        String nicknameKey = (String) entry.get("nickname_key");
+        String aliasKey = (String) entry.get("alias_key");
 
         if (!remarkKey.isEmpty() && remarkKey.equals(exactKey)) {
             remarkExactMatches.add(wxid);
@@ -1009,30 +2692,21 @@ String getGroupTalkerByKeyword(String keywordRaw) {
         return keyword;
     }
 
-    List groups = null;
-    try {
-        groups = getGroupList();
-    } catch (Exception e) {
-        log("获取群列表失败: " + e.getMessage());
-        return null;
-    }
-    if (groups == null || groups.isEmpty()) {
+    java.util.HashMap snapshot = getDirectorySnapshot();
+    String exactKey = normalizeNameKey(keyword);
+    List groups = findNgramCandidates((List) snapshot.get("groups"), (java.util.HashMap) snapshot.get("groups_ngram_index"), exactKey);
+    if (groups.isEmpty()) {
         return null;
     }
 
-    String exactKey = normalizeNameKey(keyword);
     List exactMatches = new java.util.ArrayList();
     List fuzzyMatches = new java.util.ArrayList();
 
     for (int i = 0; i < groups.size(); i++) {
-        Object item = groups.get(i);
-        if (item == null) {
-            continue;
-        }
-        String roomId = nullSafeInvokeString(item, "getRoomId");
-        String groupName = nullSafeInvokeString(item, "getName");
-        String roomIdKey = normalizeNameKey(roomId);
-        String groupNameKey = normalizeNameKey(groupName);
+        java.util.HashMap entry = (java.util.HashMap) groups.get(i);
+        String roomId = (String) entry.get("room_id");
+        String roomIdKey = (String) entry.get("room_id_key");
+        String groupNameKey = (String) entry.get("name_key");
 
         if ((!roomIdKey.isEmpty() && roomIdKey.equals(exactKey)) || (!groupNameKey.isEmpty() && groupNameKey.equals(exactKey))) {
             exactMatches.add(roomId);
@@ -1060,18 +2734,55 @@ String getGroupTalkerByKeyword(String keywordRaw) {
     return null;
 }
 
+java.util.HashMap getBeanAccessorTable(Class beanClass) {
+    String className = beanClass.getName();
+    java.util.HashMap table = (java.util.HashMap) BEAN_ACCESSOR_TABLES.get(className);
+    if (table != null && table.get("class") == beanClass) {
+        return table;
+    }
+    // 首次遇到该类，或同名类被宿主重新加载：丢弃旧的 Method 引用
+    table = new java.util.HashMap();
+    table.put("class", beanClass);
+    table.put("methods", new ConcurrentHashMap());
+    BEAN_ACCESSOR_TABLES.put(className, table);
+    return table;
+}
+
+java.lang.reflect.Method resolveBeanAccessor(Class beanClass, String methodName) {
+    java.util.Map methods = (java.util.Map) getBeanAccessorTable(beanClass).get("methods");
+    Object cached = methods.get(methodName);
+    if (cached == null) {
+        beanAccessorMisses.incrementAndGet();
+        try {
+            cached = beanClass.getMethod(methodName, new Class[0]);
+        } catch (Exception e) {
+            cached = BEAN_ACCESSOR_MISSING;
+        }
+        methods.put(methodName, cached);
+    }
+    if (cached == BEAN_ACCESSOR_MISSING) {
+        return null;
+    }
+    return (java.lang.reflect.Method) cached;
+}
+
 String nullSafeInvokeString(Object target, String methodName) {
     try {
         if (target == null || methodName == null || methodName.isEmpty()) {
             return "";
         }
-        java.lang.reflect.Method m = target.getClass().getMethod(methodName, new Class[0]);
+        java.lang.reflect.Method m = resolveBeanAccessor(target.getClass(), methodName);
+        if (m == null) {
+            beanAccessorFallbacks.incrementAndGet();
+            return "";
+        }
         Object value = m.invoke(target, new Object[0]);
         if (value == null) {
             return "";
         }
         return String.valueOf(value).trim();
     } catch (Exception e) {
+        beanAccessorFallbacks.incrementAndGet();
         return "";
     }
 }
@@ -1089,36 +2800,11 @@ String getFriendDisplayName(String wxid) {
         return friendName.trim();
     }
 
-    List friends = null;
-    try {
-        friends = getFriendList();
-    } catch (Exception e) {
-        log("获取好友显示名失败: " + e.getMessage());
-        return "";
-    }
-    if (friends == null || friends.isEmpty()) {
+    java.util.HashMap friend = findDirectoryFriend(getDirectorySnapshot(), wxid);
+    if (friend == null) {
         return "";
     }
-
-    String target = normalizeNameKey(wxid);
-    for (int i = 0; i < friends.size(); i++) {
-        Object item = friends.get(i);
-        if (item == null) {
-            continue;
-        }
-        String friendWxid = normalizeNameKey(nullSafeInvokeString(item, "getWxid"));
-        if (friendWxid.isEmpty() || !friendWxid.equals(target)) {
-            continue;
-        }
-        String remark = nullSafeInvokeString(item, "getRemark");
-        if (!remark.isEmpty()) return remark;
-        String nickname = nullSafeInvokeString(item, "getNickname");
-        if (!nickname.isEmpty()) return nickname;
-        String alias = nullSafeInvokeString(item, "getAlias");
-        if (!alias.isEmpty()) return alias;
-        break;
-    }
-    return "";
+    return (String) friend.get("display_name");
 }
 
 String getGroupNameByTalker(String groupTalker) {
@@ -1126,34 +2812,11 @@ String getGroupNameByTalker(String groupTalker) {
         return "";
     }
 
-    List groups = null;
-    try {
-        groups = getGroupList();
-    } catch (Exception e) {
-        log("获取群名称失败: " + e.getMessage());
+    java.util.HashMap group = findDirectoryGroup(getDirectorySnapshot(), groupTalker);
+    if (group == null) {
         return "";
     }
-    if (groups == null || groups.isEmpty()) {
-        return "";
-    }
-
-    String target = normalizeNameKey(groupTalker);
-    for (int i = 0; i < groups.size(); i++) {
-        Object item = groups.get(i);
-        if (item == null) {
-            continue;
-        }
-        String roomId = normalizeNameKey(nullSafeInvokeString(item, "getRoomId"));
-        if (roomId.isEmpty() || !roomId.equals(target)) {
-            continue;
-        }
-        String groupName = nullSafeInvokeString(item, "getName");
-        if (!groupName.isEmpty()) {
-            return groupName;
-        }
-        break;
-    }
-    return "";
+    return (String) group.get("name");
 }
 
 String extractGroupMemberWxid(Object item) {
@@ -1169,33 +2832,19 @@ String getGroupMemberDisplayName(String groupTalker, String memberWxid) {
         return "";
     }
 
-    List members = null;
-    try {
-        members = getGroupMemberList(groupTalker);
-    } catch (Exception e) {
-        log("获取群成员显示名失败: " + e.getMessage());
+    java.util.HashMap roster = getGroupRoster(groupTalker);
+    if (roster == null) {
         return "";
     }
-    if (members != null && !members.isEmpty()) {
-        String target = normalizeNameKey(memberWxid);
-        for (int i = 0; i < members.size(); i++) {
-            Object item = members.get(i);
-            if (item == null) {
-                continue;
-            }
-            String wxid = normalizeNameKey(extractGroupMemberWxid(item));
-            if (wxid.isEmpty() || !wxid.equals(target)) {
-                continue;
-            }
-            String displayName = nullSafeInvokeString(item, "getDisplayName");
-            if (!displayName.isEmpty()) return displayName;
-            String groupNick = nullSafeInvokeString(item, "getGroupNick");
-            if (!groupNick.isEmpty()) return groupNick;
-            String nickname = nullSafeInvokeString(item, "getNickname");
-            if (!nickname.isEmpty()) return nickname;
-            String name = nullSafeInvokeString(item, "getName");
-            if (!name.isEmpty()) return name;
-            break;
+    return resolveGroupMemberDisplayNameInRoster(groupTalker, roster, memberWxid);
+}
+
+String resolveGroupMemberDisplayNameInRoster(String groupTalker, java.util.HashMap roster, String memberWxid) {
+    java.util.HashMap member = findGroupRosterMember(roster, memberWxid);
+    if (member != null) {
+        String groupDisplayName = (String) member.get("group_display_name");
+        if (!groupDisplayName.isEmpty()) {
+            return groupDisplayName;
         }
     }
 
@@ -1210,6 +2859,49 @@ String getGroupMemberDisplayName(String groupTalker, String memberWxid) {
     return getFriendDisplayName(memberWxid);
 }
 
+// 批量解析显示名：群内按 getGroupMemberDisplayName 的优先级（群名单 > 群内称呼 > 好友显示名），
+// 否则按 getFriendDisplayName；群名单整批只取一次
+JSONObject buildResolveDisplayNamesResult(JSONArray wxids, String groupTalker) {
+    boolean inGroup = groupTalker != null && !groupTalker.trim().isEmpty();
+    java.util.HashMap roster = inGroup ? getGroupRoster(groupTalker.trim()) : null;
+
+    JSONObject names = new JSONObject();
+    JSONArray unresolved = new JSONArray();
+    int total = Math.min(wxids.size(), RESOLVE_DISPLAY_NAMES_MAX);
+    for (int i = 0; i < total; i++) {
+        String wxid = wxids.getString(i);
+        if (wxid == null || wxid.trim().isEmpty()) {
+            continue;
+        }
+        wxid = wxid.trim();
+        if (names.containsKey(wxid) || unresolved.contains(wxid)) {
+            continue;
+        }
+        String displayName = inGroup
+            ? resolveGroupMemberDisplayNameInRoster(groupTalker.trim(), roster, wxid)
+            : getFriendDisplayName(wxid);
+        if (displayName == null || displayName.isEmpty()) {
+            unresolved.add(wxid);
+        } else {
+            names.put(wxid, displayName);
+        }
+    }
+
+    JSONObject result = new JSONObject();
+    if (inGroup) {
+        result.put("group_talker", groupTalker.trim());
+    }
+    result.put("names", names);
+    result.put("count", names.size());
+    if (unresolved.size() > 0) {
+        result.put("unresolved", unresolved);
+    }
+    if (wxids.size() > total) {
+        result.put("dropped", wxids.size() - total);
+    }
+    return result;
+}
+
 int getResolvedGroupMemberCount(String groupTalker) {
     if (groupTalker == null || groupTalker.trim().isEmpty()) {
         return 0;
@@ -1233,61 +2925,281 @@ int getResolvedGroupMemberCount(String groupTalker) {
         }
     } catch (Exception ignore) {}
 
-    try {
-        List members = getGroupMemberList(groupTalker);
-        if (members != null) {
-            return members.size();
-        }
-    } catch (Exception ignore) {}
+    java.util.HashMap roster = getGroupRoster(groupTalker);
+    if (roster != null) {
+        return ((Integer) roster.get("size")).intValue();
+    }
     return 0;
 }
 
-String resolveInboundSenderDisplayName(Object msgInfoBean, String sender, String talker) {
+// 只读缓存的群成员数；未缓存或已过期时排入后台补齐并返回 -1（过期值仍先返回）
+int getCachedGroupMemberCount(String groupTalker) {
+    String key = normalizeId(groupTalker);
+    java.util.HashMap cached = (java.util.HashMap) GROUP_MEMBER_COUNT_CACHE.get(key);
+    if (cached != null) {
+        int count = ((Integer) cached.get("count")).intValue();
+        long age = System.currentTimeMillis() - ((Long) cached.get("fetched_at")).longValue();
+        if (age > (count > 0 ? GROUP_MEMBER_COUNT_TTL_MS : GROUP_MEMBER_COUNT_NEGATIVE_TTL_MS)) {
+            enqueueGroupMemberCountFill(key);
+        }
+        groupMemberCountHits.incrementAndGet();
+        return count;
+    }
+    enqueueGroupMemberCountFill(key);
+    return -1;
+}
+
+// count <= 0（取不到）也缓存，GROUP_MEMBER_COUNT_NEGATIVE_TTL_MS 后再重试：
+// 原来没有值时记为 0；已有正数时保留旧值，只把下次重试推迟同样的时长，不被一次失败冲掉
+void putGroupMemberCount(String groupTalker, int count) {
+    String key = normalizeId(groupTalker);
+    long now = System.currentTimeMillis();
+    java.util.HashMap entry = new java.util.HashMap();
+    if (count > 0) {
+        entry.put("count", Integer.valueOf(count));
+        entry.put("fetched_at", Long.valueOf(now));
+    } else {
+        java.util.HashMap previous = (java.util.HashMap) GROUP_MEMBER_COUNT_CACHE.get(key);
+        int previousCount = previous != null ? ((Integer) previous.get("count")).intValue() : 0;
+        entry.put("count", Integer.valueOf(previousCount));
+        entry.put("fetched_at", Long.valueOf(previousCount > 0 ? now - GROUP_MEMBER_COUNT_TTL_MS + GROUP_MEMBER_COUNT_NEGATIVE_TTL_MS : now));
+    }
+    GROUP_MEMBER_COUNT_CACHE.put(key, entry);
+}
+
+void enqueueGroupMemberCountFill(String key) {
+    if (GROUP_MEMBER_COUNT_PENDING.putIfAbsent(key, Boolean.TRUE) != null) {
+        return;
+    }
+    groupMemberCountQueue.offer(key);
+    synchronized (groupMemberCountWorkerLock) {
+        if (groupMemberCountWorker != null) {
+            return;
+        }
+        groupMemberCountWorker = new Thread(new Runnable() {
+            public void run() {
+                drainGroupMemberCountQueue();
+            }
+        });
+        groupMemberCountWorker.setDaemon(true);
+        groupMemberCountWorker.start();
+    }
+}
+
+// 队列清空后线程退出；退出前在锁内复查，避免与新入队的请求错过
+void drainGroupMemberCountQueue() {
+    while (true) {
+        String key = (String) groupMemberCountQueue.poll();
+        if (key == null) {
+            synchronized (groupMemberCountWorkerLock) {
+                if (groupMemberCountQueue.isEmpty()) {
+                    groupMemberCountWorker = null;
+                    return;
+                }
+            }
+            continue;
+        }
+        try {
+            putGroupMemberCount(key, getResolvedGroupMemberCount(key));
+            groupMemberCountFills.incrementAndGet();
+        } catch (Exception e) {
+            log("获取群成员数失败: " + e.getMessage());
+        } finally {
+            GROUP_MEMBER_COUNT_PENDING.remove(key);
+        }
+    }
+}
+
+JSONObject buildGroupMemberCountStats() {
+    JSONObject stats = new JSONObject();
+    stats.put("size", GROUP_MEMBER_COUNT_CACHE.size());
+    stats.put("pending", GROUP_MEMBER_COUNT_PENDING.size());
+    stats.put("hits", groupMemberCountHits.get());
+    stats.put("fills", groupMemberCountFills.get());
+    return stats;
+}
+
+String resolveInboundSenderDisplayName(Object msgInfoBean, String sender, String talker, java.util.HashMap senderNames) {
     String displayName = nullSafeInvokeString(msgInfoBean, "getDisplayName");
     if (!displayName.isEmpty()) {
         return displayName;
     }
 
-    if (msgInfoBean != null && msgInfoBean.isGroupChat()) {
-        String groupDisplayName = getGroupMemberDisplayName(talker, sender);
-        if (!groupDisplayName.isEmpty()) {
-            return groupDisplayName;
+    if (senderNames == null) {
+        boolean isGroup = msgInfoBean != null && msgInfoBean.isGroupChat();
+        senderNames = getInboundSenderNames(talker, sender, isGroup);
+    }
+    return (String) senderNames.get("fallback_display_name");
+}
+
+java.util.HashMap getFreshInboundEnrichment(java.util.Map cache, String key) {
+    java.util.HashMap cached = (java.util.HashMap) cache.get(key);
+    if (cached == null) {
+        return null;
+    }
+    long age = System.currentTimeMillis() - ((Long) cached.get("cached_at")).longValue();
+    if (age > INBOUND_ENRICHMENT_TTL_MS) {
+        cache.remove(key);
+        return null;
+    }
+    inboundEnrichmentHits.incrementAndGet();
+    return cached;
+}
+
+void putInboundEnrichment(java.util.Map cache, String key, java.util.HashMap entry, long startedAtNanos) {
+    inboundEnrichmentMisses.incrementAndGet();
+    inboundEnrichmentMissNanos.addAndGet(System.nanoTime() - startedAtNanos);
+    entry.put("cached_at", System.currentTimeMillis());
+    // 超过上限直接整表清空：入站热点集中在少数活跃群，重建代价很小
+    if (cache.size() >= INBOUND_ENRICHMENT_MAX_ENTRIES) {
+        cache.clear();
+    }
+    cache.put(key, entry);
+}
+
+// 发送者名称：group_display_name 为群内显示名（私聊为空），fallback_display_name 为 bean 未带显示名时的兜底名称
+java.util.HashMap getInboundSenderNames(String talker, String sender, boolean isGroup) {
+    String key = normalizeId(talker) + "|" + normalizeId(sender);
+    java.util.HashMap cached = getFreshInboundEnrichment(INBOUND_SENDER_CACHE, key);
+    if (cached != null) {
+        return cached;
+    }
+
+    long startedAt = System.nanoTime();
+    String groupDisplayName = isGroup ? getGroupMemberDisplayName(talker, sender) : "";
+    String fallbackDisplayName = groupDisplayName;
+    if (fallbackDisplayName.isEmpty()) {
+        fallbackDisplayName = getFriendDisplayName(sender);
+    }
+    if (fallbackDisplayName.isEmpty()) {
+        fallbackDisplayName = sender == null ? "" : sender.trim();
+    }
+
+    java.util.HashMap entry = new java.util.HashMap();
+    entry.put("group_display_name", groupDisplayName);
+    entry.put("fallback_display_name", fallbackDisplayName);
+    putInboundEnrichment(INBOUND_SENDER_CACHE, key, entry, startedAt);
+    return entry;
+}
+
+java.util.HashMap getInboundGroupInfo(String talker) {
+    String key = normalizeId(talker);
+    java.util.HashMap cached = getFreshInboundEnrichment(INBOUND_GROUP_CACHE, key);
+    if (cached != null) {
+        return cached;
+    }
+
+    long startedAt = System.nanoTime();
+    java.util.HashMap entry = new java.util.HashMap();
+    entry.put("group_name", getGroupNameByTalker(talker));
+    int memberCount = getResolvedGroupMemberCount(talker);
+    putGroupMemberCount(talker, memberCount);
+    entry.put("member_count", memberCount);
+    putInboundEnrichment(INBOUND_GROUP_CACHE, key, entry, startedAt);
+    return entry;
+}
+
+void invalidateInboundEnrichmentCache() {
+    INBOUND_SENDER_CACHE.clear();
+    INBOUND_GROUP_CACHE.clear();
+}
+
+int inboundDedupHome(long msgId) {
+    long h = msgId * -7046029254386353131L;  // 0x9E3779B97F4A7C15
+    return (int) ((h >> 40) & (inboundDedupTable.length - 1));
+}
+
+// 线性探测的删除：清空槽位后把后续簇里“家”不在 (hole, j] 区间的条目前移，保证查找不断链
+void removeInboundDedupEntry(long msgId) {
+    long[] table = inboundDedupTable;
+    int mask = table.length - 1;
+    int hole = inboundDedupHome(msgId);
+    while (table[hole] != msgId) {
+        if (table[hole] == 0) {
+            return;
         }
+        hole = (hole + 1) & mask;
     }
+    table[hole] = 0;
+    int j = hole;
+    while (true) {
+        j = (j + 1) & mask;
+        if (table[j] == 0) {
+            return;
+        }
+        int home = inboundDedupHome(table[j]);
+        boolean stays = hole <= j ? (hole < home && home <= j) : (hole < home || home <= j);
+        if (!stays) {
+            table[hole] = table[j];
+            table[j] = 0;
+            hole = j;
+        }
+    }
+}
+
+// 已见过返回 true；否则记下该 msgId 并返回 false。msgId 为 0（取不到）时不去重
+boolean checkAndMarkInboundMsgSeen(long msgId) {
+    if (msgId == 0) {
+        return false;
+    }
+    synchronized (inboundDedupLock) {
+        long[] table = inboundDedupTable;
+        int mask = table.length - 1;
+        int slot = inboundDedupHome(msgId);
+        while (table[slot] != 0) {
+            if (table[slot] == msgId) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        long evicted = inboundDedupRing[inboundDedupRingNext];
+        if (evicted != 0) {
+            removeInboundDedupEntry(evicted);
+            slot = inboundDedupHome(msgId);
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+        }
+        table[slot] = msgId;
+        inboundDedupRing[inboundDedupRingNext] = msgId;
+        inboundDedupRingNext = (inboundDedupRingNext + 1) % inboundDedupRing.length;
+        return false;
+    }
+}
 
-    String friendDisplayName = getFriendDisplayName(sender);
-    if (!friendDisplayName.isEmpty()) {
-        return friendDisplayName;
-    }
+JSONObject buildInboundDedupStats() {
+    JSONObject stats = new JSONObject();
+    stats.put("capacity", inboundDedupRing.length);
+    stats.put("duplicates_dropped", inboundDuplicatesDropped.get());
+    return stats;
+}
 
-    return sender == null ? "" : sender.trim();
+JSONObject buildInboundEnrichmentStats() {
+    long hits = inboundEnrichmentHits.get();
+    long misses = inboundEnrichmentMisses.get();
+    long missNanos = inboundEnrichmentMissNanos.get();
+    JSONObject stats = new JSONObject();
+    stats.put("sender_entries", INBOUND_SENDER_CACHE.size());
+    stats.put("group_entries", INBOUND_GROUP_CACHE.size());
+    stats.put("ttl_ms", INBOUND_ENRICHMENT_TTL_MS);
+    stats.put("hits", hits);
+    stats.put("misses", misses);
+    stats.put("miss_time_ms", missNanos / 1000000L);
+    // 以平均 miss 耗时估算命中节省的时间
+    stats.put("estimated_saved_ms", misses == 0 ? 0L : (hits * (missNanos / misses)) / 1000000L);
+    return stats;
 }
 
 boolean isFriendWxid(String wxid) {
     if (wxid == null || wxid.trim().isEmpty()) {
         return false;
     }
-    List friends = null;
-    try {
-        friends = getFriendList();
-    } catch (Exception e) {
-        log("获取好友列表失败: " + e.getMessage());
-        return false;
-    }
-    if (friends == null || friends.isEmpty()) {
-        return false;
-    }
-
-    String target = normalizeNameKey(wxid);
-    for (int i = 0; i < friends.size(); i++) {
-        Object item = friends.get(i);
-        if (item == null) continue;
-        String friendWxid = normalizeNameKey(nullSafeInvokeString(item, "getWxid"));
-        if (!friendWxid.isEmpty() && friendWxid.equals(target)) {
-            return true;
-        }
+    java.util.HashMap snapshot = getDirectorySnapshot();
+    if (findDirectoryFriend(snapshot, wxid) != null) {
+        return true;
     }
-    return false;
+    java.util.HashMap refreshed = refreshDirectorySnapshotAfterMiss(snapshot);
+    return findDirectoryFriend(refreshed, wxid) != null;
 }
 
 String resolveOutboundTalker(String rawTalker) {
@@ -1331,48 +3243,55 @@ String resolveOutboundTalker(String rawTalker) {
     return null;
 }
 
-String resolveGroupMemberWxid(String groupTalker, String memberKeyRaw) {
+String normalizeGroupMemberKey(String memberKeyRaw) {
     String memberKey = normalizeTargetText(memberKeyRaw).trim();
-    if (memberKey.isEmpty()) {
-        return null;
-    }
     if (startsWithIgnoreCase(memberKey, "wxid:") || startsWithIgnoreCase(memberKey, "id:")) {
         memberKey = memberKey.substring(memberKey.indexOf(":") + 1).trim();
     }
+    return memberKey;
+}
+
+String resolveGroupMemberWxid(String groupTalker, String memberKeyRaw) {
+    String memberKey = normalizeGroupMemberKey(memberKeyRaw);
+    if (memberKey.isEmpty()) {
+        return null;
+    }
     // 群 @ 模板中也仅显式 wxid_ 直接放行，避免昵称误判为 wxid
     if (looksLikeExplicitWxid(memberKey)) {
         return memberKey;
     }
+    return resolveGroupMemberWxidInRoster(groupTalker, getGroupRoster(groupTalker), memberKey);
+}
 
-    List members = null;
-    try {
-        members = getGroupMemberList(groupTalker);
-    } catch (Exception e) {
-        log("获取群成员失败: " + e.getMessage());
+String resolveGroupMemberWxidInRoster(String groupTalker, java.util.HashMap roster, String memberKey) {
+    if (roster == null) {
         return null;
     }
-    if (members == null || members.isEmpty()) {
+    List members = (List) roster.get("members");
+    if (members.isEmpty()) {
         return null;
     }
 
     String key = normalizeNameKey(memberKey);
+    java.util.HashMap nameIndex = getGroupRosterNameIndex(groupTalker, roster);
     List exactMatches = new java.util.ArrayList();
     List fuzzyMatches = new java.util.ArrayList();
-    for (int i = 0; i < members.size(); i++) {
-        Object item = members.get(i);
-        if (item == null) continue;
-        String wxid = extractGroupMemberWxid(item);
-        if (wxid.isEmpty()) continue;
-        String wxidKey = normalizeNameKey(wxid);
-        String groupName = normalizeNameKey(getGroupMemberDisplayName(groupTalker, wxid));
-        String globalName = normalizeNameKey(getFriendDisplayName(wxid));
-
-        if (wxidKey.equals(key) || (!groupName.isEmpty() && groupName.equals(key)) || (!globalName.isEmpty() && globalName.equals(key))) {
-            exactMatches.add(wxid);
-            continue;
+    List exactSlots = (List) ((java.util.HashMap) nameIndex.get("exact")).get(key);
+    if (exactSlots != null) {
+        for (int i = 0; i < exactSlots.size(); i++) {
+            java.util.HashMap member = (java.util.HashMap) members.get(((Integer) exactSlots.get(i)).intValue());
+            exactMatches.add(member.get("wxid"));
         }
-        if ((!groupName.isEmpty() && groupName.indexOf(key) >= 0) || (!globalName.isEmpty() && globalName.indexOf(key) >= 0)) {
-            fuzzyMatches.add(wxid);
+    } else {
+        // 精确未命中时才需要子串匹配，名称键已预先规范化
+        List groupNames = (List) nameIndex.get("group_names");
+        List globalNames = (List) nameIndex.get("global_names");
+        for (int i = 0; i < members.size(); i++) {
+            String groupName = (String) groupNames.get(i);
+            String globalName = (String) globalNames.get(i);
+            if ((!groupName.isEmpty() && groupName.indexOf(key) >= 0) || (!globalName.isEmpty() && globalName.indexOf(key) >= 0)) {
+                fuzzyMatches.add(((java.util.HashMap) members.get(i)).get("wxid"));
+            }
         }
     }
 
@@ -1389,24 +3308,57 @@ String resolveGroupMemberWxid(String groupTalker, String memberKeyRaw) {
     return null;
 }
 
-String renderGroupMentionTemplates(String groupTalker, String content) {
+// 单遍渲染 {{at:...}}：同一名单快照批量解析，重复 token 只解析一次；未解析的 token 原样保留并写入 unresolvedTokens（可为 null）
+String renderGroupMentionTemplates(String groupTalker, String content, List unresolvedTokens) {
     if (content == null || content.indexOf("{{at:") < 0) {
         return content;
     }
-    String result = content;
-    int guard = 0;
-    while (guard < 32) {
-        guard++;
-        int start = result.indexOf("{{at:");
+    StringBuilder out = new StringBuilder(content.length() + 32);
+    java.util.HashMap resolvedByToken = new java.util.HashMap();
+    java.util.HashMap roster = null;
+    boolean rosterLoaded = false;
+    int tokenCount = 0;
+    int cursor = 0;
+    while (tokenCount < 32) {
+        int start = content.indexOf("{{at:", cursor);
         if (start < 0) break;
-        int end = result.indexOf("}}", start);
+        int end = content.indexOf("}}", start);
         if (end < 0) break;
-        String token = result.substring(start + 5, end).trim();
-        String resolvedWxid = resolveGroupMemberWxid(groupTalker, token);
-        String replacement = resolvedWxid != null ? "[AtWx=" + resolvedWxid + "]" : result.substring(start, end + 2);
-        result = result.substring(0, start) + replacement + result.substring(end + 2);
+        tokenCount++;
+        out.append(content, cursor, start);
+        cursor = end + 2;
+
+        String token = content.substring(start + 5, end).trim();
+        String resolvedWxid = null;
+        if (resolvedByToken.containsKey(token)) {
+            resolvedWxid = (String) resolvedByToken.get(token);
+        } else {
+            String memberKey = normalizeGroupMemberKey(token);
+            if (memberKey.isEmpty()) {
+                resolvedWxid = null;
+            } else if (looksLikeExplicitWxid(memberKey)) {
+                resolvedWxid = memberKey;
+            } else {
+                if (!rosterLoaded) {
+                    roster = getGroupRoster(groupTalker);
+                    rosterLoaded = true;
+                }
+                resolvedWxid = resolveGroupMemberWxidInRoster(groupTalker, roster, memberKey);
+            }
+            resolvedByToken.put(token, resolvedWxid);
+            if (resolvedWxid == null && unresolvedTokens != null) {
+                unresolvedTokens.add(token);
+            }
+        }
+
+        if (resolvedWxid != null) {
+            out.append("[AtWx=").append(resolvedWxid).append("]");
+        } else {
+            out.append(content, start, end + 2);
+        }
     }
-    return result;
+    out.append(content, cursor, content.length());
+    return out.toString();
 }
 
 boolean isGroupChatAllowedByPolicy(String talker) {
@@ -1556,6 +3508,645 @@ Set resolveEffectiveGroupAllowFrom(String talker) {
     return merged;
 }
 
+String normalizeConfigVersion(String raw) {
+    return raw == null ? "" : raw.trim();
+}
+
+String normalizeGroupConfigKey(String raw) {
+    String trimmed = raw == null ? "" : raw.trim();
+    return "*".equals(trimmed) ? "*" : normalizeId(trimmed);
+}
+
+HashSet parseNormalizedIdSet(JSONArray array) {
+    HashSet result = new HashSet();
+    if (array == null) {
+        return result;
+    }
+    for (int i = 0; i < array.size(); i++) {
+        String normalized = normalizeId(array.getString(i));
+        if (!normalized.isEmpty()) {
+            result.add(normalized);
+        }
+    }
+    return result;
+}
+
+java.util.HashMap parseGroupConfigEntry(JSONObject groupCfg) {
+    java.util.HashMap entry = new java.util.HashMap();
+
+    Boolean groupEnabled = groupCfg.getBoolean("enabled");
+    if (groupEnabled != null) {
+        entry.put("enabled", groupEnabled);
+    }
+
+    String perGroupPolicy = groupCfg.getString("group_policy");
+    if ("allowlist".equals(perGroupPolicy) || "disabled".equals(perGroupPolicy) || "open".equals(perGroupPolicy)) {
+        entry.put("group_policy", perGroupPolicy);
+    }
+
+    Boolean perGroupRequireMention = groupCfg.getBoolean("require_mention");
+    if (perGroupRequireMention != null) {
+        entry.put("require_mention", perGroupRequireMention);
+    }
+
+    Boolean perGroupRespondToMentionAll = groupCfg.getBoolean("respond_to_mention_all");
+    if (perGroupRespondToMentionAll != null) {
+        entry.put("respond_to_mention_all", perGroupRespondToMentionAll);
+    }
+
+    if (groupCfg.containsKey("allow_from")) {
+        entry.put("allow_from", parseNormalizedIdSet(groupCfg.getJSONArray("allow_from")));
+    }
+
+    if (groupCfg.containsKey("trigger_keywords")) {
+        entry.put("trigger_keywords", parseNormalizedIdSet(groupCfg.getJSONArray("trigger_keywords")));
+    }
+    return entry;
+}
+
+// 在集合自身的锁内整体替换内容，读方（contains/size 同样持这把锁）看不到半空状态
+void replaceSetContents(Set target, Set next) {
+    synchronized (target) {
+        target.clear();
+        target.addAll(next);
+    }
+}
+
+void applyFullConfig(JSONObject data) {
+    HashSet nextAllowFrom = parseNormalizedIdSet(data.getJSONArray("allow_from"));
+    HashSet nextGroupAllowChats = parseNormalizedIdSet(data.getJSONArray("group_allow_chats"));
+    HashSet nextGroupAllowFrom = parseNormalizedIdSet(data.getJSONArray("group_allow_from"));
+    HashSet nextNoMentionContextGroups = parseNormalizedIdSet(data.getJSONArray("no_mention_context_groups"));
+    HashSet nextTriggerKeywords = parseNormalizedIdSet(data.getJSONArray("trigger_keywords"));
+
+    java.util.HashMap nextGroupConfigs = new java.util.HashMap();
+    JSONObject groups = data.getJSONObject("groups");
+    if (groups != null) {
+        java.util.Iterator it = groups.keySet().iterator();
+        while (it.hasNext()) {
+            Object keyObj = it.next();
+            if (keyObj == null) {
+                continue;
+            }
+            String rawGroupId = String.valueOf(keyObj);
+            String normalizedGroupId = normalizeGroupConfigKey(rawGroupId);
+            if (normalizedGroupId.isEmpty()) {
+                continue;
+            }
+            JSONObject groupCfg = groups.getJSONObject(rawGroupId);
+            if (groupCfg == null) {
+                continue;
+            }
+            nextGroupConfigs.put(normalizedGroupId, parseGroupConfigEntry(groupCfg));
+        }
+    }
+
+    replaceSetContents(ALLOW_FROM, nextAllowFrom);
+    allowFromVersion.incrementAndGet();
+    replaceSetContents(GROUP_ALLOW_CHATS, nextGroupAllowChats);
+    replaceSetContents(GROUP_ALLOW_FROM, nextGroupAllowFrom);
+    replaceSetContents(NO_MENTION_CONTEXT_GROUPS, nextNoMentionContextGroups);
+    replaceSetContents(TRIGGER_KEYWORDS, nextTriggerKeywords);
+    synchronized (GROUP_CONFIGS) {
+        GROUP_CONFIGS.clear();
+        GROUP_CONFIGS.putAll(nextGroupConfigs);
+    }
+
+    String nextGroupPolicy = data.getString("group_policy");
+    if ("allowlist".equals(nextGroupPolicy) || "disabled".equals(nextGroupPolicy) || "open".equals(nextGroupPolicy)) {
+        groupPolicy = nextGroupPolicy;
+    } else {
+        groupPolicy = "open";
+    }
+
+    // 完整配置未携带的标量回到默认值，与重连前清空状态时的行为一致
+    Boolean requireMention = data.getBoolean("require_mention_in_group");
+    requireMentionInGroup = requireMention != null ? requireMention.booleanValue() : true;
+
+    Boolean respondToMentionAll = data.getBoolean("respond_to_mention_all_in_group");
+    respondToMentionAllInGroup = respondToMentionAll != null ? respondToMentionAll.booleanValue() : false;
+}
+
+int applyConfigSetPatch(Set target, JSONObject add, JSONObject remove, String field) {
+    int changes = 0;
+    if (remove != null) {
+        java.util.Iterator it = parseNormalizedIdSet(remove.getJSONArray(field)).iterator();
+        while (it.hasNext()) {
+            if (target.remove(it.next())) {
+                changes++;
+            }
+        }
+    }
+    if (add != null) {
+        java.util.Iterator it = parseNormalizedIdSet(add.getJSONArray(field)).iterator();
+        while (it.hasNext()) {
+            if (target.add(it.next())) {
+                changes++;
+            }
+        }
+    }
+    return changes;
+}
+
+// 增量格式：set 覆盖标量；add / remove 增删名单条目；groups 中对象为替换该群覆盖，null 为删除
+int applyConfigPatch(JSONObject data) {
+    int changes = 0;
+    JSONObject set = data.getJSONObject("set");
+    if (set != null) {
+        String nextGroupPolicy = set.getString("group_policy");
+        if ("allowlist".equals(nextGroupPolicy) || "disabled".equals(nextGroupPolicy) || "open".equals(nextGroupPolicy)) {
+            groupPolicy = nextGroupPolicy;
+            changes++;
+        }
+        Boolean requireMention = set.getBoolean("require_mention_in_group");
+        if (requireMention != null) {
+            requireMentionInGroup = requireMention.booleanValue();
+            changes++;
+        }
+        Boolean respondToMentionAll = set.getBoolean("respond_to_mention_all_in_group");
+        if (respondToMentionAll != null) {
+            respondToMentionAllInGroup = respondToMentionAll.booleanValue();
+            changes++;
+        }
+    }
+
+    JSONObject add = data.getJSONObject("add");
+    JSONObject remove = data.getJSONObject("remove");
+    int allowFromChanges = applyConfigSetPatch(ALLOW_FROM, add, remove, "allow_from");
+    if (allowFromChanges > 0) {
+        allowFromVersion.incrementAndGet();
+    }
+    changes += allowFromChanges;
+    changes += applyConfigSetPatch(GROUP_ALLOW_CHATS, add, remove, "group_allow_chats");
+    changes += applyConfigSetPatch(GROUP_ALLOW_FROM, add, remove, "group_allow_from");
+    changes += applyConfigSetPatch(NO_MENTION_CONTEXT_GROUPS, add, remove, "no_mention_context_groups");
+    changes += applyConfigSetPatch(TRIGGER_KEYWORDS, add, remove, "trigger_keywords");
+
+    JSONObject groups = data.getJSONObject("groups");
+    if (groups != null) {
+        java.util.Iterator it = groups.keySet().iterator();
+        while (it.hasNext()) {
+            Object keyObj = it.next();
+            if (keyObj == null) {
+                continue;
+            }
+            String rawGroupId = String.valueOf(keyObj);
+            String normalizedGroupId = normalizeGroupConfigKey(rawGroupId);
+            if (normalizedGroupId.isEmpty()) {
+                continue;
+            }
+            JSONObject groupCfg = groups.getJSONObject(rawGroupId);
+            if (groupCfg == null) {
+                GROUP_CONFIGS.remove(normalizedGroupId);
+            } else {
+                GROUP_CONFIGS.put(normalizedGroupId, parseGroupConfigEntry(groupCfg));
+            }
+            changes++;
+        }
+    }
+    return changes;
+}
+
+// 只记录规模，不打印名单全文（数百个群覆盖时日志会非常大）
+String describeAppliedConfig() {
+    return "config_version=" + (appliedConfigVersion.isEmpty() ? "-" : appliedConfigVersion)
+        + ", group_policy=" + groupPolicy
+        + ", allow_from=" + ALLOW_FROM.size()
+        + ", group_allow_chats=" + GROUP_ALLOW_CHATS.size()
+        + ", group_allow_from=" + GROUP_ALLOW_FROM.size()
+        + ", no_mention_context_groups=" + NO_MENTION_CONTEXT_GROUPS.size()
+        + ", trigger_keywords=" + TRIGGER_KEYWORDS.size()
+        + ", groups=" + GROUP_CONFIGS.size()
+        + ", require_mention_in_group=" + requireMentionInGroup
+        + ", respond_to_mention_all_in_group=" + respondToMentionAllInGroup;
+}
+
+JSONArray toSortedJsonArray(Set values) {
+    java.util.TreeSet sorted;
+    synchronized (values) {
+        sorted = new java.util.TreeSet(values);
+    }
+    JSONArray array = new JSONArray();
+    array.addAll(sorted);
+    return array;
+}
+
+// 把当前生效的策略还原成与 config 帧相同的结构，用于落盘
+JSONObject buildAppliedConfigData() {
+    JSONObject data = new JSONObject();
+    data.put("config_version", appliedConfigVersion);
+    data.put("allow_from", toSortedJsonArray(ALLOW_FROM));
+    data.put("group_policy", groupPolicy);
+    data.put("group_allow_chats", toSortedJsonArray(GROUP_ALLOW_CHATS));
+    data.put("group_allow_from", toSortedJsonArray(GROUP_ALLOW_FROM));
+    data.put("no_mention_context_groups", toSortedJsonArray(NO_MENTION_CONTEXT_GROUPS));
+    data.put("trigger_keywords", toSortedJsonArray(TRIGGER_KEYWORDS));
+    data.put("require_mention_in_group", requireMentionInGroup);
+    data.put("respond_to_mention_all_in_group", respondToMentionAllInGroup);
+
+    JSONObject groups = new JSONObject();
+    synchronized (GROUP_CONFIGS) {
+        java.util.Iterator it = GROUP_CONFIGS.entrySet().iterator();
+        while (it.hasNext()) {
+            java.util.Map.Entry entry = (java.util.Map.Entry) it.next();
+            java.util.HashMap groupEntry = (java.util.HashMap) entry.getValue();
+            JSONObject groupCfg = new JSONObject();
+            java.util.Iterator fieldIt = groupEntry.entrySet().iterator();
+            while (fieldIt.hasNext()) {
+                java.util.Map.Entry field = (java.util.Map.Entry) fieldIt.next();
+                Object value = field.getValue();
+                groupCfg.put(field.getKey(), value instanceof Set ? toSortedJsonArray((Set) value) : value);
+            }
+            groups.put(entry.getKey(), groupCfg);
+        }
+    }
+    data.put("groups", groups);
+    return data;
+}
+
+void persistPolicyConfig() {
+    synchronized (policyConfigPersistLock) {
+        File target = new File(pluginDir, POLICY_CONFIG_FILE);
+        File temp = new File(pluginDir, POLICY_CONFIG_FILE + ".tmp");
+        FileOutputStream out = null;
+        try {
+            byte[] bytes = buildAppliedConfigData().toString().getBytes(StandardCharsets.UTF_8);
+            out = new FileOutputStream(temp);
+            out.write(bytes);
+            out.flush();
+            out.getFD().sync();
+            out.close();
+            out = null;
+            if (!temp.renameTo(target)) {
+                log("策略配置落盘失败: rename " + temp.getName() + " -> " + target.getName());
+                temp.delete();
+            }
+        } catch (Exception e) {
+            log("策略配置落盘失败: " + e.getMessage());
+            temp.delete();
+        } finally {
+            try { if (out != null) out.close(); } catch (Exception ignore) {}
+        }
+    }
+}
+
+// 加载时用上次落盘的配置立即恢复过滤策略，不必等待连接与配置往返
+void restorePolicyConfigFromDisk() {
+    File file = new File(pluginDir, POLICY_CONFIG_FILE);
+    if (!file.exists() || !file.isFile()) {
+        return;
+    }
+    java.io.FileInputStream in = null;
+    try {
+        in = new java.io.FileInputStream(file);
+        java.io.ByteArrayOutputStream buffer = new java.io.ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        int read;
+        while ((read = in.read(chunk)) != -1) {
+            buffer.write(chunk, 0, read);
+        }
+        JSONObject data = JSON.parseObject(new String(buffer.toByteArray(), StandardCharsets.UTF_8));
+        if (data == null) {
+            return;
+        }
+        applyFullConfig(data);
+        appliedConfigVersion = normalizeConfigVersion(data.getString("config_version"));
+        configReceived = true;
+        policyConfigRestored = true;
+        publishPolicySnapshot();
+        replayPreConfigMessages();
+        log("已从磁盘恢复策略配置: " + describeAppliedConfig());
+    } catch (Exception e) {
+        log("恢复策略配置失败，等待服务端下发: " + e.getMessage());
+    } finally {
+        try { if (in != null) in.close(); } catch (Exception ignore) {}
+    }
+}
+
+// 闸门未开时入队并返回 true（超出上限丢弃最旧的一条）；等锁期间闸门已打开则返回 false，由调用方直接处理
+boolean bufferPreConfigMessage(Object msgInfoBean) {
+    synchronized (preConfigBuffer) {
+        if (preConfigGateOpen) {
+            return false;
+        }
+        if (preConfigBuffer.size() >= PRE_CONFIG_BUFFER_MAX) {
+            preConfigBuffer.pollFirst();
+            preConfigDropped.incrementAndGet();
+        }
+        preConfigBuffer.addLast(new Object[] { msgInfoBean, Long.valueOf(System.currentTimeMillis()) });
+    }
+    preConfigBuffered.incrementAndGet();
+    return true;
+}
+
+// 配置落地后打开闸门。有暂存消息时由单个线程按到达顺序逐条取出并过滤上报，期间新消息继续排在队尾；
+// 取空队列与打开闸门在同一把锁内完成，而入队也持这把锁检查闸门，所以闸门打开前到达的消息一定已经
+// 回放完毕，之后的消息才走直通路径——同一会话里旧消息不会晚于新消息到达 Host
+void replayPreConfigMessages() {
+    synchronized (preConfigBuffer) {
+        if (preConfigGateOpen || preConfigDrainPending || policySnapshotRef.get() == null) {
+            return;
+        }
+        if (preConfigBuffer.isEmpty()) {
+            preConfigGateOpen = true;
+            return;
+        }
+        preConfigDrainPending = true;
+    }
+    new Thread(new Runnable() {
+        public void run() {
+            int replayed = 0;
+            int expired = 0;
+            while (true) {
+                Object[] item;
+                synchronized (preConfigBuffer) {
+                    item = (Object[]) preConfigBuffer.pollFirst();
+                    if (item == null) {
+                        preConfigGateOpen = true;
+                        preConfigDrainPending = false;
+                        break;
+                    }
+                }
+                if (System.currentTimeMillis() - ((Long) item[1]).longValue() > PRE_CONFIG_BUFFER_MAX_AGE_MS) {
+                    preConfigDropped.incrementAndGet();
+                    expired++;
+                    continue;
+                }
+                try {
+                    filterAndForwardInboundMessage(item[0]);
+                    replayed++;
+                } catch (Exception e) {
+                    log("暂存消息重新处理失败: " + e.getMessage());
+                }
+            }
+            preConfigReplayed.addAndGet(replayed);
+            log("配置到达，已按顺序重新处理暂存消息 " + replayed + " 条，过期丢弃 " + expired + " 条");
+        }
+    }).start();
+}
+
+// 单个群的最终决策；talker 传空串即得到通配符 "*" / 全局默认下的决策
+java.util.HashMap compileGroupDecision(String talker, java.util.HashMap automatonCache) {
+    java.util.HashMap decision = new java.util.HashMap();
+    boolean admitted = isGroupChatAllowedByPolicy(talker) && isGroupEnabledByConfig(talker);
+    String senderPolicy = resolveGroupSenderPolicy(talker);
+    Set allowFrom = resolveEffectiveGroupAllowFrom(talker);
+    decision.put("admitted", Boolean.valueOf(admitted));
+    decision.put("sender_disabled", Boolean.valueOf("disabled".equals(senderPolicy)));
+    // null 表示不限制发送者；allowlist 但名单为空时与旧逻辑一致，视为不限制
+    decision.put("sender_allow_from", "allowlist".equals(senderPolicy) && allowFrom.size() > 0 ? Collections.unmodifiableSet(allowFrom) : null);
+    decision.put("mention_required", Boolean.valueOf(isGroupMentionRequired(talker)));
+    decision.put("respond_to_mention_all", Boolean.valueOf(isGroupRespondToMentionAll(talker)));
+    decision.put("no_mention_context", Boolean.valueOf(isNoMentionContextGroupEnabled(talker)));
+    // 相同关键词集合的群共用一台自动机；没有关键词时为 null
+    java.util.TreeSet keywords = new java.util.TreeSet(resolveEffectiveTriggerKeywords(talker));
+    java.util.HashMap automaton = null;
+    if (!keywords.isEmpty()) {
+        String cacheKey = keywords.toString();
+        automaton = (java.util.HashMap) automatonCache.get(cacheKey);
+        if (automaton == null) {
+            automaton = compileKeywordAutomaton(keywords);
+            automatonCache.put(cacheKey, automaton);
+        }
+    }
+    decision.put("keyword_automaton", automaton);
+    return decision;
+}
+
+// 把当前配置编译为不可变快照：显式出现在任一配置项里的群各自预先算好决策，其余群共用 default
+java.util.HashMap compilePolicySnapshot() {
+    java.util.LinkedHashSet talkers = new java.util.LinkedHashSet();
+    synchronized (GROUP_ALLOW_CHATS) {
+        talkers.addAll(GROUP_ALLOW_CHATS);
+    }
+    synchronized (NO_MENTION_CONTEXT_GROUPS) {
+        talkers.addAll(NO_MENTION_CONTEXT_GROUPS);
+    }
+    synchronized (GROUP_CONFIGS) {
+        talkers.addAll(GROUP_CONFIGS.keySet());
+    }
+    talkers.remove("*");
+
+    java.util.HashMap automatonCache = new java.util.HashMap();
+    java.util.HashMap groups = new java.util.HashMap();
+    java.util.Iterator it = talkers.iterator();
+    while (it.hasNext()) {
+        String talker = String.valueOf(it.next());
+        groups.put(talker, Collections.unmodifiableMap(compileGroupDecision(talker, automatonCache)));
+    }
+    java.util.Map defaultDecision = Collections.unmodifiableMap(compileGroupDecision("", automatonCache));
+
+    Set allowFrom = new HashSet();
+    addNormalizedEntries(allowFrom, ALLOW_FROM);
+
+    java.util.HashMap snapshot = new java.util.HashMap();
+    snapshot.put("version", Long.valueOf(policySnapshotCompiles.incrementAndGet()));
+    snapshot.put("compiled_at", Long.valueOf(System.currentTimeMillis()));
+    snapshot.put("group_policy", groupPolicy);
+    snapshot.put("allow_from", Collections.unmodifiableSet(allowFrom));
+    snapshot.put("groups", Collections.unmodifiableMap(groups));
+    snapshot.put("default", defaultDecision);
+    snapshot.put("keyword_automata", Integer.valueOf(automatonCache.size()));
+    return snapshot;
+}
+
+// Aho-Corasick：关键词（已小写）建成 trie，BFS 补失配指针并把后缀节点的输出并入，
+// 冻结为按字符排序的数组。扫描时逐字符二分查边，一遍即可找出全部命中的关键词
+java.util.HashMap compileKeywordAutomaton(java.util.TreeSet keywordSet) {
+    String[] keywords = (String[]) keywordSet.toArray(new String[0]);
+    List edges = new java.util.ArrayList();
+    List outs = new java.util.ArrayList();
+    edges.add(new java.util.TreeMap());
+    outs.add(new java.util.ArrayList());
+    for (int k = 0; k < keywords.length; k++) {
+        String word = keywords[k];
+        int node = 0;
+        for (int i = 0; i < word.length(); i++) {
+            java.util.TreeMap next = (java.util.TreeMap) edges.get(node);
+            Character c = Character.valueOf(word.charAt(i));
+            Integer child = (Integer) next.get(c);
+            if (child == null) {
+                child = Integer.valueOf(edges.size());
+                next.put(c, child);
+                edges.add(new java.util.TreeMap());
+                outs.add(new java.util.ArrayList());
+            }
+            node = child.intValue();
+        }
+        ((List) outs.get(node)).add(Integer.valueOf(k));
+    }
+
+    int size = edges.size();
+    char[][] labels = new char[size][];
+    int[][] targets = new int[size][];
+    for (int n = 0; n < size; n++) {
+        java.util.TreeMap next = (java.util.TreeMap) edges.get(n);
+        labels[n] = new char[next.size()];
+        targets[n] = new int[next.size()];
+        int j = 0;
+        java.util.Iterator it = next.entrySet().iterator();
+        while (it.hasNext()) {
+            java.util.Map.Entry edge = (java.util.Map.Entry) it.next();
+            labels[n][j] = ((Character) edge.getKey()).charValue();
+            targets[n][j] = ((Integer) edge.getValue()).intValue();
+            j++;
+        }
+    }
+
+    int[] fail = new int[size];
+    int[] queue = new int[size];
+    int head = 0;
+    int tail = 0;
+    for (int j = 0; j < targets[0].length; j++) {
+        queue[tail] = targets[0][j];
+        tail++;
+    }
+    while (head < tail) {
+        int node = queue[head];
+        head++;
+        for (int j = 0; j < targets[node].length; j++) {
+            int child = targets[node][j];
+            char c = labels[node][j];
+            int state = fail[node];
+            int nextState = findKeywordTransition(labels, targets, state, c);
+            while (nextState < 0 && state != 0) {
+                state = fail[state];
+                nextState = findKeywordTransition(labels, targets, state, c);
+            }
+            fail[child] = nextState < 0 ? 0 : nextState;
+            // BFS 保证失配目标更浅、输出已合并完毕
+            ((List) outs.get(child)).addAll((List) outs.get(fail[child]));
+            queue[tail] = child;
+            tail++;
+        }
+    }
+
+    int[][] output = new int[size][];
+    for (int n = 0; n < size; n++) {
+        List list = (List) outs.get(n);
+        output[n] = new int[list.size()];
+        for (int j = 0; j < list.size(); j++) {
+            output[n][j] = ((Integer) list.get(j)).intValue();
+        }
+    }
+
+    java.util.HashMap automaton = new java.util.HashMap();
+    automaton.put("keywords", keywords);
+    automaton.put("labels", labels);
+    automaton.put("targets", targets);
+    automaton.put("fail", fail);
+    automaton.put("output", output);
+    return automaton;
+}
+
+int findKeywordTransition(char[][] labels, int[][] targets, int state, char c) {
+    char[] row = labels[state];
+    int low = 0;
+    int high = row.length - 1;
+    while (low <= high) {
+        int mid = (low + high) / 2;
+        if (row[mid] < c) {
+            low = mid + 1;
+        } else if (row[mid] > c) {
+            high = mid - 1;
+        } else {
+            return targets[state][mid];
+        }
+    }
+    return -1;
+}
+
+// 返回命中的关键词（按首次命中顺序去重）；未命中返回 null。正文整体用 String.toLowerCase 转小写，
+// 与关键词的归一化方式一致（逐字符转换在特殊大小写映射上会与之不符）
+List matchKeywordAutomaton(java.util.HashMap automaton, String text) {
+    if (automaton == null || text == null || text.isEmpty()) {
+        return null;
+    }
+    String[] keywords = (String[]) automaton.get("keywords");
+    char[][] labels = (char[][]) automaton.get("labels");
+    int[][] targets = (int[][]) automaton.get("targets");
+    int[] fail = (int[]) automaton.get("fail");
+    int[][] output = (int[][]) automaton.get("output");
+    String lowered = text.toLowerCase();
+    List matched = null;
+    boolean[] seen = null;
+    int state = 0;
+    for (int i = 0; i < lowered.length(); i++) {
+        char c = lowered.charAt(i);
+        int next = findKeywordTransition(labels, targets, state, c);
+        while (next < 0 && state != 0) {
+            state = fail[state];
+            next = findKeywordTransition(labels, targets, state, c);
+        }
+        state = next < 0 ? 0 : next;
+        int[] hits = output[state];
+        for (int j = 0; j < hits.length; j++) {
+            if (seen == null) {
+                seen = new boolean[keywords.length];
+                matched = new java.util.ArrayList();
+            }
+            if (!seen[hits[j]]) {
+                seen[hits[j]] = true;
+                matched.add(keywords[hits[j]]);
+            }
+        }
+    }
+    return matched;
+}
+
+void publishPolicySnapshot() {
+    java.util.HashMap snapshot = compilePolicySnapshot();
+    policySnapshotRef.set(snapshot);
+    log("过滤策略快照已发布: version=" + snapshot.get("version") + ", groups=" + ((java.util.Map) snapshot.get("groups")).size());
+}
+
+JSONObject buildPolicySnapshotStats() {
+    JSONObject stats = new JSONObject();
+    java.util.HashMap snapshot = (java.util.HashMap) policySnapshotRef.get();
+    stats.put("compiles", policySnapshotCompiles.get());
+    stats.put("config_version", appliedConfigVersion);
+    stats.put("full_applies", configFullApplies.get());
+    stats.put("patch_applies", configPatchApplies.get());
+    stats.put("skips", configSkips.get());
+    stats.put("keyword_matches", keywordTriggerMatches.get());
+    stats.put("restored", policyConfigRestored);
+    JSONObject buffer = new JSONObject();
+    synchronized (preConfigBuffer) {
+        buffer.put("size", preConfigBuffer.size());
+    }
+    buffer.put("buffered", preConfigBuffered.get());
+    buffer.put("replayed", preConfigReplayed.get());
+    buffer.put("dropped", preConfigDropped.get());
+    stats.put("pre_config_buffer", buffer);
+    stats.put("ready", snapshot != null);
+    if (snapshot != null) {
+        stats.put("version", snapshot.get("version"));
+        stats.put("compiled_at", snapshot.get("compiled_at"));
+        stats.put("groups", ((java.util.Map) snapshot.get("groups")).size());
+        stats.put("allow_from", ((Set) snapshot.get("allow_from")).size());
+        stats.put("keyword_automata", snapshot.get("keyword_automata"));
+    }
+    return stats;
+}
+
+// 全局关键词 + 群级覆盖（精确群优先，否则 "*"），合并方式与 allowFrom 一致
+Set resolveEffectiveTriggerKeywords(String talker) {
+    Set merged = new HashSet();
+    addNormalizedEntries(merged, TRIGGER_KEYWORDS);
+
+    java.util.HashMap exact = getExactGroupConfig(talker);
+    if (exact != null && exact.containsKey("trigger_keywords")) {
+        addNormalizedEntries(merged, exact.get("trigger_keywords"));
+        return merged;
+    }
+
+    java.util.HashMap defaults = getDefaultGroupConfig();
+    if (defaults != null) {
+        addNormalizedEntries(merged, defaults.get("trigger_keywords"));
+    }
+    return merged;
+}
+
 boolean checkAndIncreaseSendRateLimit() {
     long now = System.currentTimeMillis();
     if (now - sendRateLimitWindowStart > 60000) {
@@ -1570,7 +4161,7 @@ boolean checkAndIncreaseSendRateLimit() {
     return true;
 }
 
-JSONObject validateCanonicalOutboundTarget(String rawTalker, String commandType) {
+JSONObject validateCanonicalOutboundTarget(String rawTalker, String commandType, boolean directoryRetry) {
     JSONObject result = new JSONObject();
     String talker = normalizeTargetText(rawTalker).trim();
     if (talker.isEmpty()) {
@@ -1601,7 +4192,15 @@ JSONObject validateCanonicalOutboundTarget(String rawTalker, String commandType)
 
     boolean isGroupTalker = looksLikeGroupTalker(talker);
     if (isGroupTalker) {
-        if (!isKnownGroupTalker(talker)) {
+        String groupMiss = checkDirectoryTarget(talker, true, directoryRetry, "invalid_group");
+        if ("directory_refreshing".equals(groupMiss)) {
+            log(commandType + " 目标群不在目录快照中，已请求刷新，等待 Host 重试: " + talker);
+            result.put("ok", false);
+            result.put("error_code", groupMiss);
+            result.put("error", "group talker not in directory snapshot, refresh requested");
+            return result;
+        }
+        if (groupMiss != null) {
             log("【安全】拒绝发送群消息：目标群不存在或不可用: " + talker);
             result.put("ok", false);
             result.put("error_code", "invalid_group");
@@ -1620,7 +4219,15 @@ JSONObject validateCanonicalOutboundTarget(String rawTalker, String commandType)
         result.put("error", "direct talker must be canonical wxid");
         return result;
     }
-    if (!isFriendWxid(talker)) {
+    String friendMiss = checkDirectoryTarget(talker, false, directoryRetry, "not_friend");
+    if ("directory_refreshing".equals(friendMiss)) {
+        log(commandType + " 目标不在好友目录快照中，已请求刷新，等待 Host 重试: " + talker);
+        result.put("ok", false);
+        result.put("error_code", friendMiss);
+        result.put("error", "target not in directory snapshot, refresh requested");
+        return result;
+    }
+    if (friendMiss != null) {
         log("【安全】拒绝发送私聊：目标不是当前账号好友或非 canonical wxid: " + talker);
         result.put("ok", false);
         result.put("error_code", "not_friend");
@@ -1875,28 +4482,12 @@ boolean isKnownGroupTalker(String talker) {
     if (talker == null || talker.trim().isEmpty()) {
         return false;
     }
-    List groups = null;
-    try {
-        groups = getGroupList();
-    } catch (Exception e) {
-        log("获取群列表失败: " + e.getMessage());
-        return false;
-    }
-    if (groups == null || groups.isEmpty()) {
-        return false;
-    }
-    String normalizedTalker = normalizeNameKey(talker);
-    for (int i = 0; i < groups.size(); i++) {
-        Object item = groups.get(i);
-        if (item == null) {
-            continue;
-        }
-        String roomId = normalizeNameKey(nullSafeInvokeString(item, "getRoomId"));
-        if (!roomId.isEmpty() && roomId.equals(normalizedTalker)) {
-            return true;
-        }
+    java.util.HashMap snapshot = getDirectorySnapshot();
+    if (findDirectoryGroup(snapshot, talker) != null) {
+        return true;
     }
-    return false;
+    java.util.HashMap refreshed = refreshDirectorySnapshotAfterMiss(snapshot);
+    return findDirectoryGroup(refreshed, talker) != null;
 }
 
 String resolveDirectSendStatus(String wxid) {
@@ -1944,61 +4535,72 @@ boolean isDirectTargetSendable(String wxid) {
 }
 
 JSONObject buildFriendSummary(Object item) {
-    if (item == null) {
-        return null;
-    }
-    String wxid = nullSafeInvokeString(item, "getWxid");
-    if (wxid == null || wxid.trim().isEmpty()) {
+    return buildFriendSummaryFromEntry(buildDirectoryFriendEntry(item));
+}
+
+JSONObject buildFriendSummaryFromEntry(java.util.HashMap entry) {
+    if (entry == null) {
         return null;
     }
-    String remark = nullSafeInvokeString(item, "getRemark");
-    String nickname = nullSafeInvokeString(item, "getNickname");
-    String alias = nullSafeInvokeString(item, "getAlias");
+    String wxid = (String) entry.get("wxid");
+    String remark = (String) entry.get("remark");
+    String nickname = (String) entry.get("nickname");
+    String alias = (String) entry.get("alias");
     JSONObject friend = new JSONObject();
     friend.put("wxid", wxid);
-    if (remark != null && !remark.trim().isEmpty()) {
-        friend.put("remark", remark.trim());
+    if (!remark.isEmpty()) {
+        friend.put("remark", remark);
     }
-    if (nickname != null && !nickname.trim().isEmpty()) {
-        friend.put("nickname", nickname.trim());
-    }
-    if (alias != null && !alias.trim().isEmpty()) {
-        friend.put("alias", alias.trim());
+    if (!nickname.isEmpty()) {
+        friend.put("nickname", nickname);
     }
-    String displayName = wxid;
-    if (remark != null && !remark.trim().isEmpty()) {
-        displayName = remark.trim();
-    } else if (nickname != null && !nickname.trim().isEmpty()) {
-        displayName = nickname.trim();
-    } else if (alias != null && !alias.trim().isEmpty()) {
-        displayName = alias.trim();
+    if (!alias.isEmpty()) {
+        friend.put("alias", alias);
     }
-    friend.put("display_name", displayName);
+    String displayName = (String) entry.get("display_name");
+    friend.put("display_name", displayName.isEmpty() ? wxid : displayName);
     friend.put("sendable", isDirectTargetSendable(wxid));
     return friend;
 }
 
-JSONObject buildGroupSummary(Object item) {
-    if (item == null) {
-        return null;
-    }
-    String talker = nullSafeInvokeString(item, "getRoomId");
-    if (talker == null || talker.trim().isEmpty()) {
+JSONObject buildGroupSummary(Object item, boolean includeMemberCount) {
+    return buildGroupSummaryFromEntry(buildDirectoryGroupEntry(item), includeMemberCount);
+}
+
+JSONObject buildGroupSummaryFromEntry(java.util.HashMap entry, boolean includeMemberCount) {
+    if (entry == null) {
         return null;
     }
+    String talker = (String) entry.get("room_id");
     JSONObject group = new JSONObject();
-    group.put("talker", talker.trim());
-    String name = nullSafeInvokeString(item, "getName");
-    if (name != null && !name.trim().isEmpty()) {
-        group.put("name", name.trim());
-    }
-    int memberCount = getResolvedGroupMemberCount(talker);
-    if (memberCount > 0) {
-        group.put("member_count", memberCount);
+    group.put("talker", talker);
+    String name = (String) entry.get("name");
+    if (!name.isEmpty()) {
+        group.put("name", name);
+    }
+    if (includeMemberCount) {
+        int memberCount = getCachedGroupMemberCount(talker);
+        if (memberCount > 0) {
+            group.put("member_count", memberCount);
+        }
     }
     return group;
 }
 
+String resolveLookupDirectDisplayName(String normalizedWxid, String remark, String nickname, String alias) {
+    String displayName = normalizedWxid;
+    if (remark != null && !remark.trim().isEmpty()) {
+        displayName = remark.trim();
+    }
+    if (nickname != null && !nickname.trim().isEmpty() && displayName.equals(normalizedWxid)) {
+        displayName = nickname.trim();
+    }
+    if (alias != null && !alias.trim().isEmpty() && displayName.equals(normalizedWxid) && (nickname == null || nickname.trim().isEmpty())) {
+        displayName = alias.trim();
+    }
+    return displayName;
+}
+
 JSONObject buildLookupDirectCandidate(String wxid, String remark, String nickname, String alias, String matchedBy, int score) {
     if (wxid == null || wxid.trim().isEmpty()) {
         return null;
@@ -2009,25 +4611,17 @@ JSONObject buildLookupDirectCandidate(String wxid, String remark, String nicknam
     candidate.put("talker", normalizedWxid);
     candidate.put("target_kind", "direct");
 
-    String displayName = normalizedWxid;
     if (remark != null && !remark.trim().isEmpty()) {
-        displayName = remark.trim();
-        candidate.put("remark", displayName);
+        candidate.put("remark", remark.trim());
     }
     if (nickname != null && !nickname.trim().isEmpty()) {
         candidate.put("nickname", nickname.trim());
-        if (displayName.equals(normalizedWxid)) {
-            displayName = nickname.trim();
-        }
     }
     if (alias != null && !alias.trim().isEmpty()) {
         candidate.put("alias", alias.trim());
-        if (displayName.equals(normalizedWxid) && (nickname == null || nickname.trim().isEmpty())) {
-            displayName = alias.trim();
-        }
     }
 
-    candidate.put("display_name", displayName);
+    candidate.put("display_name", resolveLookupDirectDisplayName(normalizedWxid, remark, nickname, alias));
     candidate.put("matched_by", matchedBy == null || matchedBy.trim().isEmpty() ? "unknown" : matchedBy.trim());
     candidate.put("score", score);
 
@@ -2068,26 +4662,101 @@ JSONObject buildLookupGroupCandidate(String talker, String groupName, String mat
     return candidate;
 }
 
-void upsertLookupCandidate(java.util.Map candidatesByCanonical, JSONObject candidate) {
-    if (candidatesByCanonical == null || candidate == null) {
-        return;
+// lookup 候选先记为轻量记录（预先规范化排序键，不计算 send_status），只有最终 top-K 才构建 JSON
+java.util.HashMap newLookupDirectRecord(String wxid, String remark, String nickname, String alias, String matchedBy, int score) {
+    if (wxid == null || wxid.trim().isEmpty()) {
+        return null;
+    }
+    String normalizedWxid = wxid.trim();
+    java.util.HashMap record = new java.util.HashMap();
+    record.put("target_kind", "direct");
+    record.put("talker", normalizedWxid);
+    record.put("remark", remark);
+    record.put("nickname", nickname);
+    record.put("alias", alias);
+    record.put("matched_by", matchedBy);
+    record.put("score", Integer.valueOf(score));
+    record.put("canonical_key", buildCanonicalTarget(normalizedWxid).toLowerCase());
+    record.put("sort_key", normalizeNameKey(resolveLookupDirectDisplayName(normalizedWxid, remark, nickname, alias)));
+    return record;
+}
+
+java.util.HashMap newLookupGroupRecord(String talker, String groupName, String matchedBy, int score) {
+    if (talker == null || talker.trim().isEmpty()) {
+        return null;
     }
-    String canonicalTarget = candidate.getString("canonical_target");
-    if (canonicalTarget == null || canonicalTarget.trim().isEmpty()) {
+    String normalizedTalker = talker.trim();
+    java.util.HashMap record = new java.util.HashMap();
+    record.put("target_kind", "group");
+    record.put("talker", normalizedTalker);
+    record.put("group_name", groupName);
+    record.put("matched_by", matchedBy);
+    record.put("score", Integer.valueOf(score));
+    record.put("canonical_key", buildCanonicalTarget(normalizedTalker).toLowerCase());
+    String displayName = groupName != null && !groupName.trim().isEmpty() ? groupName.trim() : normalizedTalker;
+    record.put("sort_key", normalizeNameKey(displayName));
+    return record;
+}
+
+// 同一 canonical target 只保留最高分；seq 记录首次出现顺序，用作排序的最终平局键（等价于原先稳定排序）
+void upsertLookupRecord(java.util.Map recordsByCanonical, java.util.HashMap record) {
+    if (recordsByCanonical == null || record == null) {
         return;
     }
-    String key = canonicalTarget.trim().toLowerCase();
-    JSONObject existing = (JSONObject) candidatesByCanonical.get(key);
+    String key = (String) record.get("canonical_key");
+    java.util.HashMap existing = (java.util.HashMap) recordsByCanonical.get(key);
     if (existing == null) {
-        candidatesByCanonical.put(key, candidate);
+        record.put("seq", Integer.valueOf(recordsByCanonical.size()));
+        recordsByCanonical.put(key, record);
         return;
     }
+    if (((Integer) record.get("score")).intValue() > ((Integer) existing.get("score")).intValue()) {
+        record.put("seq", existing.get("seq"));
+        recordsByCanonical.put(key, record);
+    }
+}
+
+int compareLookupRecords(java.util.HashMap left, java.util.HashMap right) {
+    int scoreCompare = ((Integer) right.get("score")).intValue() - ((Integer) left.get("score")).intValue();
+    if (scoreCompare != 0) {
+        return scoreCompare;
+    }
+    int nameCompare = ((String) left.get("sort_key")).compareTo((String) right.get("sort_key"));
+    if (nameCompare != 0) {
+        return nameCompare;
+    }
+    return ((Integer) left.get("seq")).intValue() - ((Integer) right.get("seq")).intValue();
+}
+
+// 有界堆选出前 limit 条：堆顶为当前最差记录，超出容量即弹出
+List selectTopLookupRecords(java.util.Collection records, int limit) {
+    java.util.PriorityQueue heap = new java.util.PriorityQueue(Math.max(1, limit + 1), new java.util.Comparator() {
+        public int compare(Object leftObj, Object rightObj) {
+            return compareLookupRecords((java.util.HashMap) rightObj, (java.util.HashMap) leftObj);
+        }
+    });
+    java.util.Iterator it = records.iterator();
+    while (it.hasNext()) {
+        heap.offer(it.next());
+        if (heap.size() > limit) {
+            heap.poll();
+        }
+    }
+
+    List top = new java.util.ArrayList(heap);
+    Collections.sort(top, new java.util.Comparator() {
+        public int compare(Object leftObj, Object rightObj) {
+            return compareLookupRecords((java.util.HashMap) leftObj, (java.util.HashMap) rightObj);
+        }
+    });
+    return top;
+}
 
-    int existingScore = existing.getIntValue("score");
-    int nextScore = candidate.getIntValue("score");
-    if (nextScore > existingScore) {
-        candidatesByCanonical.put(key, candidate);
+JSONObject buildLookupCandidateFromRecord(java.util.HashMap record) {
+    if ("group".equals(record.get("target_kind"))) {
+        return buildLookupGroupCandidate((String) record.get("talker"), (String) record.get("group_name"), (String) record.get("matched_by"), ((Integer) record.get("score")).intValue());
     }
+    return buildLookupDirectCandidate((String) record.get("talker"), (String) record.get("remark"), (String) record.get("nickname"), (String) record.get("alias"), (String) record.get("matched_by"), ((Integer) record.get("score")).intValue());
 }
 
 int parseLookupLimit(Object rawLimit) {
@@ -2112,6 +4781,126 @@ int parseLookupLimit(Object rawLimit) {
     return limit;
 }
 
+// 同一份目录快照上依次执行多条查询，results[i] 对应 queries[i]（缺少 query 的条目为 null）；
+// query / kind / fuzzy / limit 完全相同的条目只执行第一条，后续复用同一结果且不再占用额度
+JSONObject buildLookupTargetsBatchResult(JSONArray queries) {
+    java.util.HashMap snapshot = getDirectorySnapshot();
+    JSONArray results = new JSONArray();
+    java.util.HashMap resultsByKey = new java.util.HashMap();
+    JSONArray invalid = new JSONArray();
+    int remaining = LOOKUP_BATCH_MAX_CANDIDATES;
+    boolean truncated = false;
+    int total = Math.min(queries.size(), LOOKUP_BATCH_MAX_QUERIES);
+    for (int i = 0; i < total; i++) {
+        JSONObject item = queries.getJSONObject(i);
+        String query = item == null ? null : item.getString("query");
+        if (query == null || query.trim().isEmpty()) {
+            invalid.add(i);
+            results.add(null);
+            continue;
+        }
+        int limit = item.get("limit") == null ? LOOKUP_BATCH_DEFAULT_LIMIT : parseLookupLimit(item.get("limit"));
+        String dedupKey = normalizeLookupKind(item.getString("kind")) + "|" + normalizeLookupFuzzy(item.getString("fuzzy")) + "|" + limit + "|" + query.trim();
+        JSONObject previousResult = (JSONObject) resultsByKey.get(dedupKey);
+        if (previousResult != null) {
+            // 深拷贝：同一对象在数组中出现两次会被 fastjson 序列化成 $ref 引用
+            results.add(JSON.parseObject(previousResult.toJSONString()));
+            continue;
+        }
+        // 只有额度真的截掉了结果才算 truncated：额度用尽后被跳过的查询，或被压低上限且结果正好顶格的查询
+        boolean capped = limit > remaining;
+        if (capped) {
+            limit = remaining;
+        }
+        JSONObject result;
+        if (limit <= 0) {
+            truncated = true;
+            result = new JSONObject();
+            result.put("query", query.trim());
+            result.put("kind", normalizeLookupKind(item.getString("kind")));
+            result.put("count", 0);
+            result.put("candidates", new JSONArray());
+        } else {
+            result = buildLookupTargetsResult(snapshot, query, item.getString("kind"), limit, item.getString("fuzzy"));
+            remaining -= result.getIntValue("count");
+            if (capped && result.getIntValue("count") >= limit) {
+                truncated = true;
+            }
+        }
+        resultsByKey.put(dedupKey, result);
+        results.add(result);
+    }
+
+    JSONObject batch = new JSONObject();
+    batch.put("results", results);
+    batch.put("count", results.size());
+    batch.put("epoch", snapshot.get("epoch"));
+    if (invalid.size() > 0) {
+        batch.put("invalid_indexes", invalid);
+    }
+    if (queries.size() > total) {
+        batch.put("dropped_queries", queries.size() - total);
+    }
+    if (truncated) {
+        batch.put("truncated", true);
+    }
+    return batch;
+}
+
+// user:/group: 精确查询的目标不在快照中时按 checkDirectoryTarget 的规则请求刷新，返回是否仍在等待刷新
+boolean isExactLookupTargetRefreshing(String rawQuery, String rawKind, boolean directoryRetry) {
+    String query = normalizeTargetText(rawQuery).trim();
+    String kind = normalizeLookupKind(rawKind);
+    String miss = null;
+    if (!"group".equals(kind) && (startsWithIgnoreCase(query, "user:") || startsWithIgnoreCase(query, "direct:") || startsWithIgnoreCase(query, "friend:"))) {
+        miss = checkDirectoryTarget(query.substring(query.indexOf(":") + 1).trim(), false, directoryRetry, "not_friend");
+    } else if (!"user".equals(kind) && (startsWithIgnoreCase(query, "group:") || startsWithIgnoreCase(query, "room:") || startsWithIgnoreCase(query, "chatroom:"))) {
+        miss = checkDirectoryTarget(query.substring(query.indexOf(":") + 1).trim(), true, directoryRetry, "invalid_group");
+    }
+    return "directory_refreshing".equals(miss);
+}
+
+// 命中时直接复用序列化好的 JSON；epoch 与 allow_from 版本进入键，快照重建或配置变化后旧条目自然失效并被 LRU 淘汰
+String getLookupTargetsResultJson(String rawQuery, String rawKind, int limit, String rawFuzzy) {
+    java.util.HashMap snapshot = getDirectorySnapshot();
+    String kind = normalizeLookupKind(rawKind);
+    String fuzzy = normalizeLookupFuzzy(rawFuzzy);
+    String key = snapshot.get("epoch") + "|" + allowFromVersion.get() + "|" + kind + "|" + limit + "|" + fuzzy + "|" + rawQuery.trim();
+    synchronized (LOOKUP_RESULT_CACHE) {
+        String cached = (String) LOOKUP_RESULT_CACHE.get(key);
+        if (cached != null) {
+            lookupCacheHits.incrementAndGet();
+            return cached;
+        }
+    }
+    lookupCacheMisses.incrementAndGet();
+
+    String json = buildLookupTargetsResult(snapshot, rawQuery, kind, limit, fuzzy).toString();
+    synchronized (LOOKUP_RESULT_CACHE) {
+        LOOKUP_RESULT_CACHE.put(key, json);
+        while (LOOKUP_RESULT_CACHE.size() > LOOKUP_RESULT_CACHE_MAX_ENTRIES) {
+            java.util.Iterator it = LOOKUP_RESULT_CACHE.keySet().iterator();
+            it.next();
+            it.remove();
+        }
+    }
+    return json;
+}
+
+JSONObject buildLookupCacheStats() {
+    long hits = lookupCacheHits.get();
+    long misses = lookupCacheMisses.get();
+    JSONObject stats = new JSONObject();
+    synchronized (LOOKUP_RESULT_CACHE) {
+        stats.put("size", LOOKUP_RESULT_CACHE.size());
+    }
+    stats.put("max_entries", LOOKUP_RESULT_CACHE_MAX_ENTRIES);
+    stats.put("hits", hits);
+    stats.put("misses", misses);
+    stats.put("hit_ratio", hits + misses == 0 ? 0.0 : (double) hits / (double) (hits + misses));
+    return stats;
+}
+
 String normalizeLookupKind(String rawKind) {
     if ("user".equals(rawKind) || "group".equals(rawKind)) {
         return rawKind;
@@ -2119,9 +4908,52 @@ String normalizeLookupKind(String rawKind) {
     return "all";
 }
 
-JSONObject buildLookupTargetsResult(String rawQuery, String rawKind, int limit) {
+String normalizeLookupFuzzy(String rawFuzzy) {
+    if ("typo".equals(rawFuzzy)) {
+        return rawFuzzy;
+    }
+    return "none";
+}
+
+// typo 模式：对常规匹配未命中的条目按有界编辑距离补充候选，matched_by=<字段>_typo，距离 1 / 2 分别记 50 / 40 分
+void collectTypoLookupCandidates(java.util.Map candidatesByCanonical, List entries, java.util.HashMap index, AtomicReference charIndexHolder, String searchKey, String[] fields, String[] labels, boolean isGroup) {
+    int maxDistance = resolveTypoMaxDistance(searchKey);
+    if (maxDistance <= 0) {
+        return;
+    }
+    List candidates = findTypoCandidates(entries, index, charIndexHolder, fields, searchKey, maxDistance);
+    for (int i = 0; i < candidates.size(); i++) {
+        java.util.HashMap entry = (java.util.HashMap) candidates.get(i);
+        int bestDistance = maxDistance + 1;
+        String bestLabel = null;
+        for (int f = 0; f < fields.length; f++) {
+            String value = (String) entry.get(fields[f]);
+            if (value == null || value.isEmpty()) {
+                continue;
+            }
+            int distance = boundedEditDistance(searchKey, value, maxDistance);
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                bestLabel = labels[f];
+            }
+        }
+        if (bestLabel == null || bestDistance == 0) {
+            continue;
+        }
+        int score = 60 - 10 * bestDistance;
+        String matchedBy = bestLabel + "_typo";
+        if (isGroup) {
+            upsertLookupRecord(candidatesByCanonical, newLookupGroupRecord((String) entry.get("room_id"), (String) entry.get("name"), matchedBy, score));
+        } else {
+            upsertLookupRecord(candidatesByCanonical, newLookupDirectRecord((String) entry.get("wxid"), (String) entry.get("remark"), (String) entry.get("nickname"), (String) entry.get("alias"), matchedBy, score));
+        }
+    }
+}
+
+JSONObject buildLookupTargetsResult(java.util.HashMap snapshot, String rawQuery, String rawKind, int limit, String rawFuzzy) {
     String query = normalizeTargetText(rawQuery).trim();
     String kind = normalizeLookupKind(rawKind);
+    String fuzzy = normalizeLookupFuzzy(rawFuzzy);
     java.util.Map candidatesByCanonical = new java.util.LinkedHashMap();
 
     String exactUserTalker = null;
@@ -2133,35 +4965,36 @@ JSONObject buildLookupTargetsResult(String rawQuery, String rawKind, int limit)
     }
 
     String searchKey = normalizeNameKey(query);
+    boolean pinyinQuery = isPinyinQuery(searchKey);
 
     if (!"group".equals(kind)) {
-        List friends = getFriendList();
+        List friends = new java.util.ArrayList();
+        if (exactUserTalker != null && !exactUserTalker.isEmpty()) {
+            java.util.HashMap exactFriend = findDirectoryFriend(snapshot, exactUserTalker);
+            if (exactFriend != null) {
+                friends.add(exactFriend);
+            }
+        } else if (!searchKey.isEmpty()) {
+            friends = findNgramCandidates((List) snapshot.get("friends"), (java.util.HashMap) snapshot.get("friends_ngram_index"), searchKey);
+        }
         if (friends != null) {
             for (int i = 0; i < friends.size(); i++) {
-                Object item = friends.get(i);
-                if (item == null) {
-                    continue;
-                }
-                String wxid = nullSafeInvokeString(item, "getWxid");
-                if (wxid == null || wxid.trim().isEmpty()) {
-                    continue;
-                }
-                String remark = nullSafeInvokeString(item, "getRemark");
-                String nickname = nullSafeInvokeString(item, "getNickname");
-                String alias = nullSafeInvokeString(item, "getAlias");
+                java.util.HashMap entry = (java.util.HashMap) friends.get(i);
+                String wxid = (String) entry.get("wxid");
+                String remark = (String) entry.get("remark");
+                String nickname = (String) entry.get("nickname");
+                String alias = (String) entry.get("alias");
 
                 String matchedBy = null;
                 int score = 0;
                 if (exactUserTalker != null && !exactUserTalker.isEmpty()) {
-                    if (normalizeNameKey(wxid).equals(normalizeNameKey(exactUserTalker))) {
-                        matchedBy = "canonical_exact";
-                        score = 200;
-                    }
+                    matchedBy = "canonical_exact";
+                    score = 200;
                 } else if (!searchKey.isEmpty()) {
-                    String wxidKey = normalizeNameKey(wxid);
-                    String remarkKey = normalizeNameKey(remark);
-                    String nicknameKey = normalizeNameKey(nickname);
-                    String aliasKey = normalizeNameKey(alias);
+                    String wxidKey = (String) entry.get("wxid_key");
+                    String remarkKey = (String) entry.get("remark_key");
+                    String nicknameKey = (String) entry.get("nickname_key");
+                    String aliasKey = (String) entry.get("alias_key");
 
                     if (!remarkKey.isEmpty() && remarkKey.equals(searchKey)) {
                         matchedBy = "remark_exact";
@@ -2175,9 +5008,18 @@ JSONObject buildLookupTargetsResult(String rawQuery, String rawKind, int limit)
                     } else if (!wxidKey.isEmpty() && wxidKey.equals(searchKey)) {
                         matchedBy = "wxid_exact";
                         score = 100;
+                    } else if (pinyinQuery && entryKeyMatches(entry, FRIEND_PINYIN_FIELDS, searchKey, false)) {
+                        matchedBy = "pinyin_exact";
+                        score = 95;
+                    } else if (pinyinQuery && entryKeyMatches(entry, FRIEND_INITIALS_FIELDS, searchKey, false)) {
+                        matchedBy = "initials_exact";
+                        score = 90;
                     } else if (!remarkKey.isEmpty() && remarkKey.indexOf(searchKey) >= 0) {
                         matchedBy = "remark_fuzzy";
                         score = 80;
+                    } else if (pinyinQuery && entryKeyMatches(entry, FRIEND_PINYIN_FIELDS, searchKey, true)) {
+                        matchedBy = "pinyin_prefix";
+                        score = 75;
                     } else if (!nicknameKey.isEmpty() && nicknameKey.indexOf(searchKey) >= 0) {
                         matchedBy = "nickname_fuzzy";
                         score = 70;
@@ -2187,48 +5029,55 @@ JSONObject buildLookupTargetsResult(String rawQuery, String rawKind, int limit)
                     } else if (!wxidKey.isEmpty() && wxidKey.indexOf(searchKey) >= 0) {
                         matchedBy = "wxid_fuzzy";
                         score = 60;
+                    } else if (pinyinQuery && entryKeyMatches(entry, FRIEND_INITIALS_FIELDS, searchKey, true)) {
+                        matchedBy = "initials_prefix";
+                        score = 55;
                     }
                 }
 
                 if (matchedBy == null) {
                     continue;
                 }
-                upsertLookupCandidate(candidatesByCanonical, buildLookupDirectCandidate(wxid, remark, nickname, alias, matchedBy, score));
+                upsertLookupRecord(candidatesByCanonical, newLookupDirectRecord(wxid, remark, nickname, alias, matchedBy, score));
             }
         }
 
+        if ("typo".equals(fuzzy) && (exactUserTalker == null || exactUserTalker.isEmpty()) && !searchKey.isEmpty()) {
+            collectTypoLookupCandidates(candidatesByCanonical, (List) snapshot.get("friends"), (java.util.HashMap) snapshot.get("friends_ngram_index"), (AtomicReference) snapshot.get("friends_typo_char_index"), searchKey, FRIEND_TYPO_FIELDS, FRIEND_TYPO_LABELS, false);
+        }
+
         if (exactUserTalker != null && !exactUserTalker.isEmpty()) {
             String canonicalKey = buildCanonicalTarget(exactUserTalker).toLowerCase();
             if (!candidatesByCanonical.containsKey(canonicalKey)) {
-                upsertLookupCandidate(candidatesByCanonical, buildLookupDirectCandidate(exactUserTalker, "", "", "", "canonical_exact", 200));
+                upsertLookupRecord(candidatesByCanonical, newLookupDirectRecord(exactUserTalker, "", "", "", "canonical_exact", 200));
             }
         }
     }
 
     if (!"user".equals(kind)) {
-        List groups = getGroupList();
+        List groups = new java.util.ArrayList();
+        if (exactGroupTalker != null && !exactGroupTalker.isEmpty()) {
+            java.util.HashMap exactGroup = findDirectoryGroup(snapshot, exactGroupTalker);
+            if (exactGroup != null) {
+                groups.add(exactGroup);
+            }
+        } else if (!searchKey.isEmpty()) {
+            groups = findNgramCandidates((List) snapshot.get("groups"), (java.util.HashMap) snapshot.get("groups_ngram_index"), searchKey);
+        }
         if (groups != null) {
             for (int i = 0; i < groups.size(); i++) {
-                Object item = groups.get(i);
-                if (item == null) {
-                    continue;
-                }
-                String talker = nullSafeInvokeString(item, "getRoomId");
-                if (talker == null || talker.trim().isEmpty()) {
-                    continue;
-                }
-                String groupName = nullSafeInvokeString(item, "getName");
+                java.util.HashMap entry = (java.util.HashMap) groups.get(i);
+                String talker = (String) entry.get("room_id");
+                String groupName = (String) entry.get("name");
 
                 String matchedBy = null;
                 int score = 0;
                 if (exactGroupTalker != null && !exactGroupTalker.isEmpty()) {
-                    if (normalizeNameKey(talker).equals(normalizeNameKey(exactGroupTalker))) {
-                        matchedBy = "canonical_exact";
-                        score = 200;
-                    }
+                    matchedBy = "canonical_exact";
+                    score = 200;
                 } else if (!searchKey.isEmpty()) {
-                    String talkerKey = normalizeNameKey(talker);
-                    String groupNameKey = normalizeNameKey(groupName);
+                    String talkerKey = (String) entry.get("room_id_key");
+                    String groupNameKey = (String) entry.get("name_key");
 
                     if (!groupNameKey.isEmpty() && groupNameKey.equals(searchKey)) {
                         matchedBy = "group_name_exact";
@@ -2236,53 +5085,58 @@ JSONObject buildLookupTargetsResult(String rawQuery, String rawKind, int limit)
                     } else if (!talkerKey.isEmpty() && talkerKey.equals(searchKey)) {
                         matchedBy = "group_id_exact";
                         score = 110;
+                    } else if (pinyinQuery && entryKeyMatches(entry, GROUP_PINYIN_FIELDS, searchKey, false)) {
+                        matchedBy = "pinyin_exact";
+                        score = 95;
+                    } else if (pinyinQuery && entryKeyMatches(entry, GROUP_INITIALS_FIELDS, searchKey, false)) {
+                        matchedBy = "initials_exact";
+                        score = 90;
                     } else if (!groupNameKey.isEmpty() && groupNameKey.indexOf(searchKey) >= 0) {
                         matchedBy = "group_name_fuzzy";
                         score = 80;
+                    } else if (pinyinQuery && entryKeyMatches(entry, GROUP_PINYIN_FIELDS, searchKey, true)) {
+                        matchedBy = "pinyin_prefix";
+                        score = 75;
                     } else if (!talkerKey.isEmpty() && talkerKey.indexOf(searchKey) >= 0) {
                         matchedBy = "group_id_fuzzy";
                         score = 70;
+                    } else if (pinyinQuery && entryKeyMatches(entry, GROUP_INITIALS_FIELDS, searchKey, true)) {
+                        matchedBy = "initials_prefix";
+                        score = 55;
                     }
                 }
 
                 if (matchedBy == null) {
                     continue;
                 }
-                upsertLookupCandidate(candidatesByCanonical, buildLookupGroupCandidate(talker, groupName, matchedBy, score));
+                upsertLookupRecord(candidatesByCanonical, newLookupGroupRecord(talker, groupName, matchedBy, score));
             }
         }
 
+        if ("typo".equals(fuzzy) && (exactGroupTalker == null || exactGroupTalker.isEmpty()) && !searchKey.isEmpty()) {
+            collectTypoLookupCandidates(candidatesByCanonical, (List) snapshot.get("groups"), (java.util.HashMap) snapshot.get("groups_ngram_index"), (AtomicReference) snapshot.get("groups_typo_char_index"), searchKey, GROUP_TYPO_FIELDS, GROUP_TYPO_LABELS, true);
+        }
+
         if (exactGroupTalker != null && !exactGroupTalker.isEmpty()) {
             String canonicalKey = buildCanonicalTarget(exactGroupTalker).toLowerCase();
             if (!candidatesByCanonical.containsKey(canonicalKey)) {
-                upsertLookupCandidate(candidatesByCanonical, buildLookupGroupCandidate(exactGroupTalker, "", "canonical_exact", 200));
+                upsertLookupRecord(candidatesByCanonical, newLookupGroupRecord(exactGroupTalker, "", "canonical_exact", 200));
             }
         }
     }
 
-    java.util.List candidateList = new java.util.ArrayList(candidatesByCanonical.values());
-    java.util.Collections.sort(candidateList, new java.util.Comparator() {
-        public int compare(Object leftObj, Object rightObj) {
-            JSONObject left = (JSONObject) leftObj;
-            JSONObject right = (JSONObject) rightObj;
-            int scoreCompare = right.getIntValue("score") - left.getIntValue("score");
-            if (scoreCompare != 0) {
-                return scoreCompare;
-            }
-            String leftName = normalizeNameKey(left.getString("display_name"));
-            String rightName = normalizeNameKey(right.getString("display_name"));
-            return leftName.compareTo(rightName);
-        }
-    });
-
+    List topRecords = selectTopLookupRecords(candidatesByCanonical.values(), limit);
     JSONArray candidates = new JSONArray();
-    for (int i = 0; i < candidateList.size() && i < limit; i++) {
-        candidates.add(candidateList.get(i));
+    for (int i = 0; i < topRecords.size(); i++) {
+        candidates.add(buildLookupCandidateFromRecord((java.util.HashMap) topRecords.get(i)));
     }
 
     JSONObject result = new JSONObject();
     result.put("query", rawQuery == null ? "" : rawQuery.trim());
     result.put("kind", kind);
+    if (!"none".equals(fuzzy)) {
+        result.put("fuzzy", fuzzy);
+    }
     result.put("count", candidates.size());
     result.put("candidates", candidates);
     return result;
@@ -2304,6 +5158,10 @@ void sendCapabilities() {
         rpcMethods.add("get_friends");
         rpcMethods.add("get_groups");
         rpcMethods.add("lookup_targets");
+        rpcMethods.add("lookup_targets_batch");
+        rpcMethods.add("resolve_display_names");
+        rpcMethods.add("get_runtime_stats");
+        rpcMethods.add("refresh_directory");
         data.put("rpc_methods", rpcMethods);
 
         JSONArray commandTypes = new JSONArray();
@@ -2321,8 +5179,24 @@ void sendCapabilities() {
         features.add("local_media_cache");
         features.add("quote_reply");
         features.add("quote_inbound");
+        features.add("directory_delta");
+        features.add("group_roster_delta");
+        features.add("directory_pagination");
+        features.add("directory_etag");
+        features.add("config_patch");
         data.put("features", features);
 
+        try {
+            java.util.HashMap snapshot = getDirectorySnapshot();
+            JSONObject etags = new JSONObject();
+            etags.put("friends", buildDirectoryEtag(snapshot, false));
+            etags.put("groups", buildDirectoryEtag(snapshot, true));
+            etags.put("epoch", snapshot.get("epoch"));
+            data.put("directory_etags", etags);
+        } catch (Exception e) {
+            log("计算目录 ETag 失败: " + e.getMessage());
+        }
+
         payload.put("data", data);
         webSocket.send(payload.toString());
         log("已上报能力: rpc_methods=" + rpcMethods + ", command_types=" + commandTypes);
@@ -2331,6 +5205,26 @@ void sendCapabilities() {
     }
 }
 
+JSONObject buildRuntimeStats() {
+    JSONObject stats = new JSONObject();
+
+    JSONObject accessors = new JSONObject();
+    accessors.put("classes", BEAN_ACCESSOR_TABLES.size());
+    accessors.put("misses", beanAccessorMisses.get());
+    accessors.put("fallbacks", beanAccessorFallbacks.get());
+    stats.put("bean_accessors", accessors);
+    stats.put("directory", buildDirectoryStats());
+    stats.put("group_rosters", buildGroupRosterCacheStats());
+    stats.put("roster_watch", buildRosterWatchStats());
+    stats.put("group_member_counts", buildGroupMemberCountStats());
+    stats.put("lookup_cache", buildLookupCacheStats());
+    stats.put("policy_snapshot", buildPolicySnapshotStats());
+    stats.put("inbound_enrichment", buildInboundEnrichmentStats());
+    stats.put("inbound_dedup", buildInboundDedupStats());
+
+    return stats;
+}
+
 void sendRpcResult(String requestId, String method, Object result, String errorMessage) {
     try {
         if (webSocket == null || !isConnected) {
@@ -2358,6 +5252,27 @@ void sendRpcResult(String requestId, String method, Object result, String errorM
     }
 }
 
+// result 已是序列化好的 JSON（如 lookup 结果缓存），只拼接外层信封
+void sendRpcResultJson(String requestId, String method, String resultJson) {
+    try {
+        if (webSocket == null || !isConnected) {
+            return;
+        }
+        StringBuilder payload = new StringBuilder(resultJson.length() + 128);
+        payload.append("{\"type\":\"rpc_result\",\"data\":{\"request_id\":");
+        payload.append(JSON.toJSONString(requestId == null ? "" : requestId));
+        payload.append(",\"method\":");
+        payload.append(JSON.toJSONString(method == null ? "" : method));
+        payload.append(",\"ok\":true,\"result\":");
+        payload.append(resultJson);
+        payload.append("}}");
+        webSocket.send(payload.toString());
+        log("rpc_result 回传: request_id=" + requestId + ", method=" + method + ", ok=true");
+    } catch (Exception e) {
+        log("rpc_result 回传失败: " + e.getMessage());
+    }
+}
+
 void handleServerMessage(String text) {
     try {
         JSONObject msg = JSON.parseObject(text);
@@ -2376,135 +5291,62 @@ void handleServerMessage(String text) {
         // 服务端下发配置（白名单等）
         if ("config".equals(type)) {
             JSONObject data = msg.getJSONObject("data");
-            configReceived = true;
+            String version = data != null ? normalizeConfigVersion(data.getString("config_version")) : "";
+            if (!version.isEmpty() && version.equals(appliedConfigVersion) && policySnapshotRef.get() != null) {
+                configReceived = true;
+                configSkips.incrementAndGet();
+                log("服务端配置未变化，跳过重建: config_version=" + version);
+                replayPreConfigMessages();
+                sendCapabilities();
+                return;
+            }
             if (data != null) {
-                JSONArray allowFrom = data.getJSONArray("allow_from");
-                ALLOW_FROM.clear();
-                if (allowFrom != null) {
-                    for (int i = 0; i < allowFrom.size(); i++) {
-                        String wxid = allowFrom.getString(i);
-                        String normalized = normalizeId(wxid);
-                        if (!normalized.isEmpty()) {
-                            ALLOW_FROM.add(normalized);
-                        }
-                    }
-                }
-
-                String nextGroupPolicy = data.getString("group_policy");
-                if ("allowlist".equals(nextGroupPolicy) || "disabled".equals(nextGroupPolicy) || "open".equals(nextGroupPolicy)) {
-                    groupPolicy = nextGroupPolicy;
-                } else {
-                    groupPolicy = "open";
-                }
-
-                JSONArray groupAllowChats = data.getJSONArray("group_allow_chats");
-                GROUP_ALLOW_CHATS.clear();
-                if (groupAllowChats != null) {
-                    for (int i = 0; i < groupAllowChats.size(); i++) {
-                        String talker = groupAllowChats.getString(i);
-                        String normalized = normalizeId(talker);
-                        if (!normalized.isEmpty()) {
-                            GROUP_ALLOW_CHATS.add(normalized);
-                        }
-                    }
-                }
-
-                JSONArray groupAllowFrom = data.getJSONArray("group_allow_from");
-                GROUP_ALLOW_FROM.clear();
-                if (groupAllowFrom != null) {
-                    for (int i = 0; i < groupAllowFrom.size(); i++) {
-                        String wxid = groupAllowFrom.getString(i);
-                        String normalized = normalizeId(wxid);
-                        if (!normalized.isEmpty()) {
-                            GROUP_ALLOW_FROM.add(normalized);
-                        }
-                    }
-                }
-
-                JSONArray noMentionContextGroups = data.getJSONArray("no_mention_context_groups");
-                NO_MENTION_CONTEXT_GROUPS.clear();
-                if (noMentionContextGroups != null) {
-                    for (int i = 0; i < noMentionContextGroups.size(); i++) {
-                        String talker = noMentionContextGroups.getString(i);
-                        String normalized = normalizeId(talker);
-                        if (!normalized.isEmpty()) {
-                            NO_MENTION_CONTEXT_GROUPS.add(normalized);
-                        }
-                    }
-                }
-
-                Boolean requireMention = data.getBoolean("require_mention_in_group");
-                if (requireMention != null) {
-                    requireMentionInGroup = requireMention.booleanValue();
-                }
-
-                Boolean respondToMentionAll = data.getBoolean("respond_to_mention_all_in_group");
-                if (respondToMentionAll != null) {
-                    respondToMentionAllInGroup = respondToMentionAll.booleanValue();
-                }
-
-                JSONObject groups = data.getJSONObject("groups");
-                GROUP_CONFIGS.clear();
-                if (groups != null) {
-                    java.util.Iterator it = groups.keySet().iterator();
-                    while (it.hasNext()) {
-                        Object keyObj = it.next();
-                        if (keyObj == null) {
-                            continue;
-                        }
-                        String rawGroupId = String.valueOf(keyObj).trim();
-                        String normalizedGroupId = "*".equals(rawGroupId) ? "*" : normalizeId(rawGroupId);
-                        if (normalizedGroupId.isEmpty()) {
-                            continue;
-                        }
-
-                        JSONObject groupCfg = groups.getJSONObject(rawGroupId);
-                        if (groupCfg == null) {
-                            continue;
-                        }
-
-                        java.util.HashMap entry = new java.util.HashMap();
-
-                        Boolean groupEnabled = groupCfg.getBoolean("enabled");
-                        if (groupEnabled != null) {
-                            entry.put("enabled", groupEnabled);
-                        }
-
-                        String perGroupPolicy = groupCfg.getString("group_policy");
-                        if ("allowlist".equals(perGroupPolicy) || "disabled".equals(perGroupPolicy) || "open".equals(perGroupPolicy)) {
-                            entry.put("group_policy", perGroupPolicy);
-                        }
-
-                        Boolean perGroupRequireMention = groupCfg.getBoolean("require_mention");
-                        if (perGroupRequireMention != null) {
-                            entry.put("require_mention", perGroupRequireMention);
-                        }
-
-                        Boolean perGroupRespondToMentionAll = groupCfg.getBoolean("respond_to_mention_all");
-                        if (perGroupRespondToMentionAll != null) {
-                            entry.put("respond_to_mention_all", perGroupRespondToMentionAll);
-                        }
-
-                        if (groupCfg.containsKey("allow_from")) {
-                            HashSet localAllowFrom = new HashSet();
-                            JSONArray localAllowFromArray = groupCfg.getJSONArray("allow_from");
-                            if (localAllowFromArray != null) {
-                                for (int i = 0; i < localAllowFromArray.size(); i++) {
-                                    String normalized = normalizeId(localAllowFromArray.getString(i));
-                                    if (!normalized.isEmpty()) {
-                                        localAllowFrom.add(normalized);
-                                    }
-                                }
-                            }
-                            entry.put("allow_from", localAllowFrom);
-                        }
+                applyFullConfig(data);
+            }
+            appliedConfigVersion = version;
+            configReceived = true;
+            configFullApplies.incrementAndGet();
+            publishPolicySnapshot();
+            log("收到服务端配置: " + describeAppliedConfig());
+            persistPolicyConfig();
+            replayPreConfigMessages();
+            sendCapabilities();
+            return;
+        }
 
-                        GROUP_CONFIGS.put(normalizedGroupId, entry);
-                    }
+        if ("config_patch".equals(type)) {
+            JSONObject data = msg.getJSONObject("data");
+            if (data == null) {
+                log("config_patch 指令缺少 data");
+                return;
+            }
+            String baseVersion = normalizeConfigVersion(data.getString("base_version"));
+            String version = normalizeConfigVersion(data.getString("config_version"));
+            if (!version.isEmpty() && version.equals(appliedConfigVersion) && policySnapshotRef.get() != null) {
+                configReceived = true;
+                configSkips.incrementAndGet();
+                log("服务端配置未变化，跳过重建: config_version=" + version);
+                replayPreConfigMessages();
+                sendCapabilities();
+                return;
+            }
+            if (version.isEmpty() || !baseVersion.equals(appliedConfigVersion) || policySnapshotRef.get() == null) {
+                // 基线对不上：丢弃本地版本号并重连，让服务端下发完整配置
+                log("config_patch 基线不匹配: base_version=" + baseVersion + ", 本地=" + appliedConfigVersion + "，重连以获取完整配置");
+                appliedConfigVersion = "";
+                if (webSocket != null) {
+                    webSocket.close(1000, "Config version mismatch");
                 }
-
-                log("收到服务端配置，group_policy=" + groupPolicy + ", group_allow_chats: " + GROUP_ALLOW_CHATS + ", no_mention_context_groups: " + NO_MENTION_CONTEXT_GROUPS + ", allow_from: " + ALLOW_FROM + ", group_allow_from: " + GROUP_ALLOW_FROM + ", require_mention_in_group=" + requireMentionInGroup + ", respond_to_mention_all_in_group=" + respondToMentionAllInGroup + ", groups=" + GROUP_CONFIGS);
+                return;
             }
+            int changes = applyConfigPatch(data);
+            appliedConfigVersion = version;
+            configReceived = true;
+            configPatchApplies.incrementAndGet();
+            publishPolicySnapshot();
+            log("已应用配置增量: " + baseVersion + " -> " + version + ", changes=" + changes + ", " + describeAppliedConfig());
+            persistPolicyConfig();
+            replayPreConfigMessages();
             sendCapabilities();
             return;
         }
@@ -2526,6 +5368,41 @@ void handleServerMessage(String text) {
                 params = new JSONObject();
             }
 
+            if (("get_friends".equals(method) || "get_groups".equals(method))
+                && params.getString("if_none_match") != null
+                && (params.getString("cursor") == null || params.getString("cursor").trim().isEmpty())) {
+                try {
+                    java.util.HashMap snapshot = getDirectorySnapshot();
+                    String etag = buildDirectoryEtag(snapshot, "get_groups".equals(method));
+                    if (etag.equals(params.getString("if_none_match").trim())) {
+                        JSONObject result = new JSONObject();
+                        result.put("not_modified", true);
+                        result.put("etag", etag);
+                        result.put("epoch", snapshot.get("epoch"));
+                        sendRpcResult(requestId, method, result, null);
+                        return;
+                    }
+                } catch (Exception e) {
+                    sendRpcResult(requestId, method, null, method + " failed: " + e.getMessage());
+                    return;
+                }
+            }
+
+            if (("get_friends".equals(method) || "get_groups".equals(method))
+                && (params.containsKey("cursor") || params.containsKey("page_size"))) {
+                try {
+                    JSONObject page = buildDirectoryPage("get_groups".equals(method), params.getString("cursor"), parseDirectoryPageSize(params.get("page_size")), params.getBooleanValue("include_member_count"));
+                    if (page == null) {
+                        sendRpcResult(requestId, method, null, "invalid cursor");
+                        return;
+                    }
+                    sendRpcResult(requestId, method, page, null);
+                } catch (Exception e) {
+                    sendRpcResult(requestId, method, null, method + " failed: " + e.getMessage());
+                }
+                return;
+            }
+
             if ("get_friends".equals(method)) {
                 JSONArray friendsJson = new JSONArray();
                 List friends = null;
@@ -2551,6 +5428,7 @@ void handleServerMessage(String text) {
             }
 
             if ("get_groups".equals(method)) {
+                boolean includeMemberCount = params.getBooleanValue("include_member_count");
                 JSONArray groupsJson = new JSONArray();
                 List groups = null;
                 try {
@@ -2561,7 +5439,7 @@ void handleServerMessage(String text) {
                 }
                 if (groups != null) {
                     for (int i = 0; i < groups.size(); i++) {
-                        JSONObject group = buildGroupSummary(groups.get(i));
+                        JSONObject group = buildGroupSummary(groups.get(i), includeMemberCount);
                         if (group != null) {
                             groupsJson.add(group);
                         }
@@ -2570,6 +5448,9 @@ void handleServerMessage(String text) {
                 JSONObject result = new JSONObject();
                 result.put("groups", groupsJson);
                 result.put("count", groupsJson.size());
+                if (includeMemberCount) {
+                    result.put("member_counts_pending", countGroupsWithoutMemberCount(groupsJson));
+                }
                 sendRpcResult(requestId, method, result, null);
                 return;
             }
@@ -2577,20 +5458,79 @@ void handleServerMessage(String text) {
             if ("lookup_targets".equals(method)) {
                 String query = params.getString("query");
                 String kind = params.getString("kind");
+                String fuzzy = params.getString("fuzzy");
                 int limit = parseLookupLimit(params.get("limit"));
                 if (query == null || query.trim().isEmpty()) {
                     sendRpcResult(requestId, method, null, "query is required");
                     return;
                 }
                 try {
-                    JSONObject result = buildLookupTargetsResult(query, kind, limit);
-                    sendRpcResult(requestId, method, result, null);
+                    String json = getLookupTargetsResultJson(query, kind, limit, fuzzy);
+                    if (isExactLookupTargetRefreshing(query, kind, params.getBooleanValue("directory_retry"))) {
+                        // 精确目标不在快照中且刷新未完成：不写入缓存，只在本次结果上标记，Host 据此等待后重试
+                        JSONObject refreshing = JSON.parseObject(json);
+                        refreshing.put("directory_refreshing", true);
+                        sendRpcResult(requestId, method, refreshing, null);
+                    } else {
+                        sendRpcResultJson(requestId, method, json);
+                    }
                 } catch (Exception e) {
                     sendRpcResult(requestId, method, null, "lookup_targets failed: " + e.getMessage());
                 }
                 return;
             }
 
+            if ("lookup_targets_batch".equals(method)) {
+                JSONArray queries = params.getJSONArray("queries");
+                if (queries == null || queries.isEmpty()) {
+                    sendRpcResult(requestId, method, null, "queries is required");
+                    return;
+                }
+                try {
+                    sendRpcResult(requestId, method, buildLookupTargetsBatchResult(queries), null);
+                } catch (Exception e) {
+                    sendRpcResult(requestId, method, null, "lookup_targets_batch failed: " + e.getMessage());
+                }
+                return;
+            }
+
+            if ("resolve_display_names".equals(method)) {
+                JSONArray wxids = params.getJSONArray("wxids");
+                if (wxids == null || wxids.isEmpty()) {
+                    sendRpcResult(requestId, method, null, "wxids is required");
+                    return;
+                }
+                try {
+                    sendRpcResult(requestId, method, buildResolveDisplayNamesResult(wxids, params.getString("group_talker")), null);
+                } catch (Exception e) {
+                    sendRpcResult(requestId, method, null, "resolve_display_names failed: " + e.getMessage());
+                }
+                return;
+            }
+
+            if ("refresh_directory".equals(method)) {
+                // 只交给后台刷新线程，不在读线程上拉全量列表；Host 可按 epoch 变化或 directory_delta 感知完成
+                try {
+                    invalidateAllGroupRosters();
+                    requestDirectoryRefresh();
+                    java.util.HashMap snapshot = (java.util.HashMap) directorySnapshotRef.get();
+                    JSONObject result = new JSONObject();
+                    result.put("epoch", snapshot != null ? snapshot.get("epoch") : Long.valueOf(0L));
+                    result.put("friends", snapshot != null ? ((List) snapshot.get("friends")).size() : 0);
+                    result.put("groups", snapshot != null ? ((List) snapshot.get("groups")).size() : 0);
+                    result.put("refresh_requested", true);
+                    sendRpcResult(requestId, method, result, null);
+                } catch (Exception e) {
+                    sendRpcResult(requestId, method, null, "refresh_directory failed: " + e.getMessage());
+                }
+                return;
+            }
+
+            if ("get_runtime_stats".equals(method)) {
+                sendRpcResult(requestId, method, buildRuntimeStats(), null);
+                return;
+            }
+
             sendRpcResult(requestId, method, null, "unsupported method: " + method);
             return;
         }
@@ -2613,7 +5553,7 @@ void handleServerMessage(String text) {
                 return;
             }
 
-            JSONObject validation = validateCanonicalOutboundTarget(talker, "send_text");
+            JSONObject validation = validateCanonicalOutboundTarget(talker, "send_text", data.getBooleanValue("directory_retry"));
             if (!validation.getBooleanValue("ok")) {
                 sendCommandResult(requestId, "send_text", null, validation.getString("error_code"), validation.getString("error"));
                 return;
@@ -2626,8 +5566,9 @@ void handleServerMessage(String text) {
 
             try {
                 boolean isGroupTalker = canonicalTalker.endsWith("@chatroom");
+                List unresolvedMentions = new java.util.ArrayList();
                 String outboundContent = isGroupTalker
-                    ? renderGroupMentionTemplates(canonicalTalker, content)
+                    ? renderGroupMentionTemplates(canonicalTalker, content, unresolvedMentions)
                     : content;
                 boolean sentAsQuote = false;
                 if (replyToMsgId > 0L) {
@@ -2651,6 +5592,9 @@ void handleServerMessage(String text) {
                 result.put("talker", canonicalTalker);
                 result.put("sent_as_quote", sentAsQuote);
                 result.put("preview", preview);
+                if (!unresolvedMentions.isEmpty()) {
+                    result.put("unresolved_mentions", unresolvedMentions);
+                }
                 sendCommandResult(requestId, "send_text", result, null, null);
             } catch (Exception e) {
                 log("send_text 发送失败: " + e.getMessage());
@@ -2685,7 +5629,7 @@ void handleServerMessage(String text) {
                 return;
             }
 
-            JSONObject validation = validateCanonicalOutboundTarget(talker, "send_image");
+            JSONObject validation = validateCanonicalOutboundTarget(talker, "send_image", data.getBooleanValue("directory_retry"));
             if (!validation.getBooleanValue("ok")) {
                 sendCommandResult(requestId, "send_image", null, validation.getString("error_code"), validation.getString("error"));
                 return;
@@ -2706,9 +5650,10 @@ void handleServerMessage(String text) {
             try {
                 sendImage(canonicalTalker, imageFile.getAbsolutePath());
                 boolean captionSent = false;
+                List unresolvedMentions = new java.util.ArrayList();
                 if (caption != null && !caption.trim().isEmpty()) {
                     String outboundCaption = canonicalTalker.endsWith("@chatroom")
-                        ? renderGroupMentionTemplates(canonicalTalker, caption)
+                        ? renderGroupMentionTemplates(canonicalTalker, caption, unresolvedMentions)
                         : caption;
                     sendText(canonicalTalker, outboundCaption);
                     captionSent = true;
@@ -2719,6 +5664,9 @@ void handleServerMessage(String text) {
                 result.put("talker", canonicalTalker);
                 result.put("local_file", imageFile.getName());
                 result.put("caption_sent", captionSent);
+                if (!unresolvedMentions.isEmpty()) {
+                    result.put("unresolved_mentions", unresolvedMentions);
+                }
                 sendCommandResult(requestId, "send_image", result, null, null);
             } catch (Exception e) {
                 log("send_image 发送失败: " + e.getMessage());
@@ -2754,7 +5702,7 @@ void handleServerMessage(String text) {
                 return;
             }
 
-            JSONObject validation = validateCanonicalOutboundTarget(talker, "send_file");
+            JSONObject validation = validateCanonicalOutboundTarget(talker, "send_file", data.getBooleanValue("directory_retry"));
             if (!validation.getBooleanValue("ok")) {
                 sendCommandResult(requestId, "send_file", null, validation.getString("error_code"), validation.getString("error"));
                 return;
@@ -2776,9 +5724,10 @@ void handleServerMessage(String text) {
             try {
                 shareFile(canonicalTalker, title, localFile.getAbsolutePath(), "");
                 boolean captionSent = false;
+                List unresolvedMentions = new java.util.ArrayList();
                 if (caption != null && !caption.trim().isEmpty()) {
                     String outboundCaption = canonicalTalker.endsWith("@chatroom")
-                        ? renderGroupMentionTemplates(canonicalTalker, caption)
+                        ? renderGroupMentionTemplates(canonicalTalker, caption, unresolvedMentions)
                         : caption;
                     sendText(canonicalTalker, outboundCaption);
                     captionSent = true;
@@ -2789,6 +5738,9 @@ void handleServerMessage(String text) {
                 result.put("talker", canonicalTalker);
                 result.put("file_name", title);
                 result.put("caption_sent", captionSent);
+                if (!unresolvedMentions.isEmpty()) {
+                    result.put("unresolved_mentions", unresolvedMentions);
+                }
                 sendCommandResult(requestId, "send_file", result, null, null);
             } catch (Exception e) {
                 log("send_file 发送失败: " + e.getMessage());